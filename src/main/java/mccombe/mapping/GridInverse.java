@@ -0,0 +1,33 @@
+package mccombe.mapping;
+
+/**
+ * A GridInverse converts easting and northing distances in one Projection,
+ * with a fixed Ellipsoid, Datum and (for UTM) zone and hemisphere, to WGS84
+ * latitude and longitude. It is made once by
+ * MappingToolkit.makeGridInverse() and then used for every point of a grid,
+ * so that the projection's class and constructor are not looked up by name
+ * for each point.
+ * <p>
+ * Instances hold no mutable state and may be shared between threads.
+ *
+ * @author Mike McCombe
+ */
+public abstract class GridInverse {
+
+    /**
+     * Make a point of the projection at a grid position
+     * @param en Easting and northing distances (m)
+     * @return The point
+     */
+    protected abstract Projection point(ENPair en);
+
+    /**
+     * Convert a grid position to latitude and longitude
+     * @param east Easting distance (m)
+     * @param north Northing distance (m)
+     * @return Latitude and longitude referred to the GRS80 Ellipsoid and WGS84 Datum
+     */
+    public LatLong toLatLong(double east, double north) {
+        return point(new ENPair(east, north)).getPosition().toLatLong(Ellipsoid.GRS80, Datum.WGS_1984);
+    }
+}
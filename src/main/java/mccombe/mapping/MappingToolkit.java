@@ -19,35 +19,110 @@ public class MappingToolkit {
         Spherical sph = new Spherical(latlon, Ellipsoid.GRS80, Datum.WGS_1984);
         MapEntry sp = new MapEntry(sph, "52.375, -2.70916");
         coordmap.put(sp.getName(), sp);
-        MapEntry p1 = new MapEntry(new OSGB(en, Ellipsoid.AIRY, Datum.OSGB_1936), "ST 430969");
+        MapEntry p1 = new MapEntry(new OSGB(en, Ellipsoid.AIRY, Datum.OSGB_1936), "ST 430969", new PointFactory() {
+            @Override
+            Projection point(ENPair grid, Ellipsoid e, Datum d, int zone, boolean northernHemisphere) {
+                return new OSGB(grid, e, d);
+            }
+        });
         coordmap.put(p1.getName(), p1);
-        p1 = new MapEntry(new LambertIIExtended(en, Ellipsoid.CLARKE, Datum.NTF), "X=455.23 Y = 2302.1");
+        p1 = new MapEntry(new LambertIIExtended(en, Ellipsoid.CLARKE, Datum.NTF), "X=455.23 Y = 2302.1", new PointFactory() {
+            @Override
+            Projection point(ENPair grid, Ellipsoid e, Datum d, int zone, boolean northernHemisphere) {
+                return new LambertIIExtended(grid, e, d);
+            }
+        });
         coordmap.put(p1.getName(), p1);
-        p1 = new MapEntry(new LambertI(en, Ellipsoid.CLARKE, Datum.NTF), "X=455.23 Y = 1102.1");
+        p1 = new MapEntry(new LambertI(en, Ellipsoid.CLARKE, Datum.NTF), "X=455.23 Y = 1102.1", new PointFactory() {
+            @Override
+            Projection point(ENPair grid, Ellipsoid e, Datum d, int zone, boolean northernHemisphere) {
+                return new LambertI(grid, e, d);
+            }
+        });
         coordmap.put(p1.getName(), p1);
-        p1 = new MapEntry(new LambertII(en, Ellipsoid.CLARKE, Datum.NTF), "X=455.23 Y = 2302.1");
+        p1 = new MapEntry(new LambertII(en, Ellipsoid.CLARKE, Datum.NTF), "X=455.23 Y = 2302.1", new PointFactory() {
+            @Override
+            Projection point(ENPair grid, Ellipsoid e, Datum d, int zone, boolean northernHemisphere) {
+                return new LambertII(grid, e, d);
+            }
+        });
         coordmap.put(p1.getName(), p1);
-        p1 = new MapEntry(new LambertIII(en, Ellipsoid.CLARKE, Datum.NTF), "X=936.7 Y = 3102.5");
+        p1 = new MapEntry(new LambertIII(en, Ellipsoid.CLARKE, Datum.NTF), "X=936.7 Y = 3102.5", new PointFactory() {
+            @Override
+            Projection point(ENPair grid, Ellipsoid e, Datum d, int zone, boolean northernHemisphere) {
+                return new LambertIII(grid, e, d);
+            }
+        });
         coordmap.put(p1.getName(), p1);
-        p1 = new MapEntry(new LambertIV(en, Ellipsoid.CLARKE, Datum.NTF), "X=455.23 Y = 2302.1");
+        p1 = new MapEntry(new LambertIV(en, Ellipsoid.CLARKE, Datum.NTF), "X=455.23 Y = 2302.1", new PointFactory() {
+            @Override
+            Projection point(ENPair grid, Ellipsoid e, Datum d, int zone, boolean northernHemisphere) {
+                return new LambertIV(grid, e, d);
+            }
+        });
         coordmap.put(p1.getName(), p1);
-        p1 = new MapEntry(new Lambert93(en, Ellipsoid.GRS80, Datum.WGS_1984), "X=455.23 Y = 2302.1");
+        p1 = new MapEntry(new Lambert93(en, Ellipsoid.GRS80, Datum.WGS_1984), "X=455.23 Y = 2302.1", new PointFactory() {
+            @Override
+            Projection point(ENPair grid, Ellipsoid e, Datum d, int zone, boolean northernHemisphere) {
+                return new Lambert93(grid, e, d);
+            }
+        });
         coordmap.put(p1.getName(), p1);
-        p1 = new MapEntry(new IrishGrid(en, Ellipsoid.MODIFIED_AIRY, Datum.IRELAND_1965), "M730196");
+        p1 = new MapEntry(new IrishGrid(en, Ellipsoid.MODIFIED_AIRY, Datum.IRELAND_1965), "M730196", new PointFactory() {
+            @Override
+            Projection point(ENPair grid, Ellipsoid e, Datum d, int zone, boolean northernHemisphere) {
+                return new IrishGrid(grid, e, d);
+            }
+        });
         coordmap.put(p1.getName(), p1);
-        p1 = new MapEntry(new NZMG(en, Ellipsoid.INTERNATIONAL, Datum.NZGD_1949), "2487100 mE 6751049 mN");
+        p1 = new MapEntry(new NZMG(en, Ellipsoid.INTERNATIONAL, Datum.NZGD_1949), "2487100 mE 6751049 mN", new PointFactory() {
+            @Override
+            Projection point(ENPair grid, Ellipsoid e, Datum d, int zone, boolean northernHemisphere) {
+                return new NZMG(grid, e, d);
+            }
+        });
         coordmap.put(p1.getName(), p1);
-        p1 = new MapEntry(new NZTM2000(en, Ellipsoid.GRS80, Datum.NZGD_2000), "2487100 mE 6751049 mN");
+        p1 = new MapEntry(new NZTM2000(en, Ellipsoid.GRS80, Datum.NZGD_2000), "2487100 mE 6751049 mN", new PointFactory() {
+            @Override
+            Projection point(ENPair grid, Ellipsoid e, Datum d, int zone, boolean northernHemisphere) {
+                return new NZTM2000(grid, e, d);
+            }
+        });
         coordmap.put(p1.getName(), p1);
-        p1 = new MapEntry(new UTM(en, 1, Ellipsoid.GRS80, Datum.WGS_1984), "32T 406946 5383757");
+        p1 = new MapEntry(new UTM(en, 1, Ellipsoid.GRS80, Datum.WGS_1984), "32T 406946 5383757", new PointFactory() {
+            @Override
+            Projection point(ENPair grid, Ellipsoid e, Datum d, int zone, boolean northernHemisphere) {
+                return new UTM(grid, zone, e, d, northernHemisphere);
+            }
+        });
         coordmap.put(p1.getName(), p1);
-        p1 = new MapEntry(new AustrianM28(en, Ellipsoid.BESSEL, Datum.MGI), "M28 486697 83757");
+        p1 = new MapEntry(new AustrianM28(en, Ellipsoid.BESSEL, Datum.MGI), "M28 486697 83757", new PointFactory() {
+            @Override
+            Projection point(ENPair grid, Ellipsoid e, Datum d, int zone, boolean northernHemisphere) {
+                return new AustrianM28(grid, e, d);
+            }
+        });
         coordmap.put(p1.getName(), p1);
-        p1 = new MapEntry(new AustrianM31(en, Ellipsoid.BESSEL, Datum.MGI), "M31 486697 83757");
+        p1 = new MapEntry(new AustrianM31(en, Ellipsoid.BESSEL, Datum.MGI), "M31 486697 83757", new PointFactory() {
+            @Override
+            Projection point(ENPair grid, Ellipsoid e, Datum d, int zone, boolean northernHemisphere) {
+                return new AustrianM31(grid, e, d);
+            }
+        });
         coordmap.put(p1.getName(), p1);
-        p1 = new MapEntry(new AustrianM34(en, Ellipsoid.BESSEL, Datum.MGI), "M34 486697 83757");
+        p1 = new MapEntry(new AustrianM34(en, Ellipsoid.BESSEL, Datum.MGI), "M34 486697 83757", new PointFactory() {
+            @Override
+            Projection point(ENPair grid, Ellipsoid e, Datum d, int zone, boolean northernHemisphere) {
+                return new AustrianM34(grid, e, d);
+            }
+        });
         coordmap.put(p1.getName(), p1);
-        p1 = new MapEntry(new SloveneGrid(en, Ellipsoid.BESSEL, Datum.MGI_SLOV), "486697 83757");
+        p1 = new MapEntry(new SloveneGrid(en, Ellipsoid.BESSEL, Datum.MGI_SLOV), "486697 83757", new PointFactory() {
+            @Override
+            Projection point(ENPair grid, Ellipsoid e, Datum d, int zone, boolean northernHemisphere) {
+                return new SloveneGrid(grid, e, d);
+            }
+        });
         coordmap.put(p1.getName(), p1);
     }
     /**
@@ -112,6 +187,52 @@ public class MappingToolkit {
             return point;
         }
     }
+/**
+ * Make a GridInverse for a Projection, to convert many grid positions to
+ * latitude and longitude. The Projection's class is looked up once, here,
+ * rather than for each point: the Projections provided by the toolkit are
+ * made by direct calls to their constructors. Projections added to the
+ * toolkit with add() are made through their (ENPair, Ellipsoid, Datum)
+ * constructor, found by reflection once.
+ * @param name - the name of the Projection
+ * @param e - the Ellipsoid for grid positions
+ * @param d - the Datum for grid positions
+ * @param zone - the zone number, for UTM only
+ * @param northernHemisphere - true for the northern hemisphere, for UTM only
+ * @return the GridInverse
+ * @throws java.lang.IllegalArgumentException if the name is not a Projection known to the toolkit
+ * @throws java.lang.NoSuchMethodException if an added Projection has no suitable constructor
+ */
+    public GridInverse makeGridInverse(String name, final Ellipsoid e, final Datum d, final int zone, final boolean northernHemisphere) throws IllegalArgumentException, NoSuchMethodException {
+        MapEntry m = coordmap.get(name);
+        if (m == null || !(m.getCoordinateSystem() instanceof Projection)) {
+            throw new IllegalArgumentException(String.format("No such Projection: %s", name));
+        }
+        final PointFactory factory = m.getFactory();
+        if (factory != null) {
+            return new GridInverse() {
+                @Override
+                protected Projection point(ENPair en) {
+                    return factory.point(en, e, d, zone, northernHemisphere);
+                }
+            };
+        }
+        final Constructor<? extends CoordinateSystem> con = m.getCoordinateSystem().getClass().getConstructor(ENPair.class, Ellipsoid.class, Datum.class);
+        return new GridInverse() {
+            @Override
+            protected Projection point(ENPair en) {
+                try {
+                    return (Projection) con.newInstance(en, e, d);
+                } catch (InvocationTargetException ex) {
+                    throw new IllegalStateException(ex.getCause());
+                } catch (InstantiationException ex) {
+                    throw new IllegalStateException(ex);
+                } catch (IllegalAccessException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        };
+    }
 /**
  * Create an alphabetically ordered list of CoordinateSystem names
  * @return The list of names
@@ -265,11 +386,25 @@ public class MappingToolkit {
         return c;
     }
 
+    /**
+     * Makes a point of one Projection provided by the toolkit, for
+     * makeGridInverse()
+     */
+    private static abstract class PointFactory {
+
+        abstract Projection point(ENPair grid, Ellipsoid e, Datum d, int zone, boolean northernHemisphere);
+    }
+
     private class MapEntry {
 
         public MapEntry(CoordinateSystem type, String exampleText) {
+            this(type, exampleText, null);
+        }
+
+        public MapEntry(CoordinateSystem type, String exampleText, PointFactory pointFactory) {
             coordinate = type;
             example = exampleText;
+            factory = pointFactory;
         }
 
         public String getExample() {
@@ -283,8 +418,16 @@ public class MappingToolkit {
         public String getName() {
             return coordinate.getName();
         }
+
+        /**
+         * @return the factory for grid points, or null if the CoordinateSystem was added with add()
+         */
+        public PointFactory getFactory() {
+            return factory;
+        }
         private String example;
         private CoordinateSystem coordinate;
+        private PointFactory factory;
     }
     private java.util.TreeMap<String, MapEntry> coordmap = new java.util.TreeMap<String, MapEntry>();
 }
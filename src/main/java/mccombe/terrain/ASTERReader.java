@@ -18,6 +18,21 @@ public class ASTERReader extends DEMReader {
         super(item);
     }
 
+    @Override
+    public int southernLimit() {
+        return southernLimit;
+    }
+
+    @Override
+    public int northernLimit() {
+        return northernLimit;
+    }
+
+    @Override
+    protected String inventoryName() {
+        return inventoryName;
+    }
+
     public String datasetName() {
         if(useLegacy) return legacyDatasetName;
         return name;
@@ -64,4 +79,7 @@ public class ASTERReader extends DEMReader {
     private static final String extn = ".zip";
     private static final boolean littleendian = true;
     private static final int missingValue = -9999;
+    private static final int southernLimit = -83; //Coverage is 83S to 83N
+    private static final int northernLimit = 82;
+    private static final String inventoryName = "ASTER";
 }
@@ -0,0 +1,98 @@
+package mccombe.terrain;
+
+/**
+ * An ArrayTile holds a tile that has been inflated and decoded into memory in
+ * one sequential pass through its data file. Heights are kept as 16-bit
+ * values in a single array, row by row, exactly as they are stored on disk.
+ *
+ * @author Mike
+ */
+public class ArrayTile extends DEMTile {
+
+    /**
+     * Create an ArrayTile from heights that have already been decoded
+     *
+     * @param name the tile name, as produced by DEMReader.makename()
+     * @param buffer decoded heights, northernmost row first
+     * @param recordlength the number of samples in each row
+     * @param count the number of valid rows in the buffer
+     */
+    public ArrayTile(String name, short[] buffer, int recordlength, int count) {
+        super(name, count, recordlength);
+        data = buffer;
+        width = recordlength;
+    }
+
+    /**
+     * Build an overview of a tile with one post for every factor posts of the
+     * original in each direction, at the same geographic positions. Each post
+     * is the area average of the original posts within half a coarse post
+     * spacing of it (posts on the boundary count half), ignoring voids; it is
+     * a void only if voids cover more than half of that area.
+     *
+     * @param name the name of the overview
+     * @param full the full-resolution tile
+     * @param factor the decimation factor, a power of 2
+     * @param missingValue the dataset's void value
+     * @return the overview
+     */
+    public static ArrayTile decimate(String name, DEMTile full, int factor, int missingValue) {
+        int width = full.width();
+        int posts = (width - 1) / factor + 1;
+        int rows = full.rows() == 0 ? 0 : (full.rows() - 1) / factor + 1;
+        int half = factor / 2;
+        short[] heights = new short[posts * posts];
+        java.util.Arrays.fill(heights, (short) missingValue);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < posts; j++) {
+                double sum = 0.0;
+                double weight = 0.0;
+                double area = 0.0;
+                for (int dr = -half; dr <= half; dr++) {
+                    int row = i * factor + dr;
+                    if (row < 0 || row >= full.rows()) {
+                        continue;
+                    }
+                    double wr = (dr == -half || dr == half) ? 0.5 : 1.0;
+                    for (int dc = -half; dc <= half; dc++) {
+                        int col = j * factor + dc;
+                        if (col < 0 || col >= width) {
+                            continue;
+                        }
+                        double w = (dc == -half || dc == half) ? wr * 0.5 : wr;
+                        area += w;
+                        int v = full.getValue(row, col);
+                        if (v != missingValue) {
+                            sum += w * v;
+                            weight += w;
+                        }
+                    }
+                }
+                if (weight * 2.0 >= area && weight > 0.0) {
+                    heights[i * posts + j] = (short) Math.round(sum / weight);
+                }
+            }
+        }
+        return new ArrayTile(name, heights, posts, rows);
+    }
+
+    @Override
+    public int getValue(int row, int col) {
+        return data[row * width + col];
+    }
+
+    /**
+     * Replace a single height value
+     */
+    public void setValue(int row, int col, int value) {
+        data[row * width + col] = (short) value;
+    }
+
+    @Override
+    public long bytes() {
+        return 2L * data.length;
+    }
+
+    private final short[] data;
+    private final int width;
+}
@@ -0,0 +1,40 @@
+package mccombe.terrain;
+
+/**
+ * A ChainedTileSource asks each of a list of sources in turn and returns the
+ * first tile found. A source which fails is passed over in favour of the rest
+ * of the chain; its error is reported only if no later source has the tile.
+ *
+ * @author Mike
+ */
+public class ChainedTileSource implements TileSource {
+
+    /**
+     * @param chain the sources to try, fastest first
+     */
+    public ChainedTileSource(TileSource... chain) {
+        sources = chain.clone();
+    }
+
+    @Override
+    public DEMTile getTile(String name, TileFormat format) throws MissingDataFileException {
+        MissingDataFileException failure = null;
+        for (TileSource source : sources) {
+            try {
+                DEMTile tile = source.getTile(name, format);
+                if (tile != null) {
+                    return tile;
+                }
+            } catch (MissingDataFileException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return null;
+    }
+    private final TileSource[] sources;
+}
@@ -4,15 +4,19 @@ import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import mccombe.mapping.*;
 import java.io.*;
-import java.util.zip.*;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 import javax.swing.JComponent;
-import javax.net.ssl.HttpsURLConnection;
 
 /**
  *
  * @author Mike
  */
-public abstract class DEMReader extends PropertyChangeSupport {
+public abstract class DEMReader extends PropertyChangeSupport implements TileFormat {
 
     protected DEMReader(JComponent item) throws MissingDataFileException {
         super(item);
@@ -22,6 +26,7 @@ public abstract class DEMReader extends PropertyChangeSupport {
         }
         addPropertyChangeListener(listener);
         item.addPropertyChangeListener(listener);
+        component = item;
         String slash = System.getProperty("file.separator");
         DIRECTORY = TerrainFrame.paths.dataPath();
         File dir = new File(DIRECTORY);
@@ -31,6 +36,44 @@ public abstract class DEMReader extends PropertyChangeSupport {
                 throw new MissingDataFileException(String.format("Failed to create data directory %s%n", DIRECTORY));
             }
         }
+        long cachesize = DEFAULT_CACHE_MB;
+        String megabytes = getProperty(TerrainProperties.CACHESIZE);
+        if (megabytes != null) {
+            try {
+                cachesize = Long.parseLong(megabytes.trim());
+            } catch (NumberFormatException e) {
+                //Fall back on the default cache size
+            }
+        }
+        cache = new TileCache(cachesize * 1024L * 1024L);
+        String offheap = getProperty(TerrainProperties.OFFHEAP);
+        if (offheap != null && offheap.equalsIgnoreCase("true")) {
+//Allow some slack for slabs released by the cache but still in use by a thread
+            arena = new TileArena(cache.capacity() + cache.capacity() / 4, new TileArena.Pins() {
+                @Override
+                public boolean pinned(DEMTile tile) {
+                    synchronized (threadTileSets) {
+                        Iterator<ThreadTiles> it = threadTileSets.iterator();
+                        while (it.hasNext()) {
+                            ThreadTiles local = it.next();
+                            if (!local.isLive()) {
+                                it.remove();
+                            } else if (local.holds(tile)) {
+                                return true;
+                            }
+                        }
+                    }
+                    return false;
+                }
+            });
+        }
+        String extract = getProperty(TerrainProperties.EXTRACT);
+        if (extract != null && extract.equalsIgnoreCase("true")) {
+            rawStore = new RawTileStore(DIRECTORY + "raw" + slash);
+        }
+        source = defaultSource();
+        overviews = new RawTileStore(DIRECTORY + "overview" + slash);
+        inventory = TileInventory.forDataset(new File(DIRECTORY + inventoryName() + ".manifest"), southernLimit(), northernLimit(), tileServer());
         try {
             File readMeTxt = new File(DIRECTORY + "ReadMe.txt");
             if (!readMeTxt.isFile()) {
@@ -53,9 +96,21 @@ public abstract class DEMReader extends PropertyChangeSupport {
         return String.format(formatstring(), ns, (int) lat, ew, (int) lon);
     }
 
-    public double getHeight(LatLong place) throws MissingDataFileException {
-        double lat = Math.floor(place.lat());
-        double lon = Math.floor(place.lon());
+    /**
+     * Pack a tile's south-west corner into a single key for the tile cache
+     *
+     * @param lat latitude of the tile's southern edge in whole degrees
+     * @param lon longitude of the tile's western edge in whole degrees
+     * @return the packed key
+     */
+    public static long tileKey(int lat, int lon) {
+        return ((long) (lat + 90) << 16) | (long) (lon + 180);
+    }
+
+    /**
+     * Make the name of the tile whose south-west corner is at (lat, lon)
+     */
+    protected String tileName(int lat, int lon) {
         String ew = "E";
         String ns = "N";
         if (lat < 0) {
@@ -64,242 +119,1303 @@ public abstract class DEMReader extends PropertyChangeSupport {
         if (lon < 0) {
             ew = "W";
         }
-        lat = Math.abs(lat);
-        lon = Math.abs(lon);
-        double x0 = tile(place.lon());
-        double y0 = (double) (recordlength() - 1) - tile(place.lat());
+        return makename(ns, Math.abs(lat), ew, Math.abs(lon));
+    }
+
+    public double getHeight(LatLong place) throws MissingDataFileException {
+        return getHeight(place.lat(), place.lon());
+    }
+
+    /**
+     * Find the heights of many points at once. Queries are sorted internally
+     * by tile and DEM row so that each tile and row is visited in one
+     * sequential sweep, however the points are ordered in the arrays.
+     *
+     * @param latitude latitudes (WGS84) of the points
+     * @param longitude longitudes (WGS84) of the points
+     * @param heights receives the height of each point, or MISSING
+     * @param count the number of points to process, starting at index 0
+     * @throws MissingDataFileException if a tile cannot be read or downloaded
+     */
+    public void getHeights(double[] latitude, double[] longitude, float[] heights, int count) throws MissingDataFileException {
+        getHeights(latitude, longitude, heights, 0, count);
+    }
+
+    /**
+     * Find the heights of a range of points in the arrays. Several threads
+     * may work on different ranges of the same arrays at once.
+     *
+     * @param latitude latitudes (WGS84) of the points
+     * @param longitude longitudes (WGS84) of the points
+     * @param heights receives the height of each point, or MISSING, at the
+     * point's own index
+     * @param first the index of the first point to process
+     * @param count the number of points to process
+     * @throws MissingDataFileException if a tile cannot be read or downloaded
+     */
+    public void getHeights(double[] latitude, double[] longitude, float[] heights, int first, int count) throws MissingDataFileException {
+        if (count >= 1 << INDEXBITS) {
+            for (int n = first; n < first + count; n++) {
+                heights[n] = (float) getHeight(latitude[n], longitude[n]);
+            }
+            return;
+        }
+        long[] order = new long[count];
+        for (int q = 0; q < count; q++) {
+            int n = first + q;
+            long key = tileKey((int) Math.floor(latitude[n]), (int) Math.floor(longitude[n]));
+            long row = (long) ((recordlength() - 1) - tile(latitude[n]));
+            order[q] = (key << (ROWBITS + INDEXBITS)) | (row << INDEXBITS) | q;
+        }
+        java.util.Arrays.sort(order);
+        for (int q = 0; q < count; q++) {
+            int n = first + (int) (order[q] & ((1L << INDEXBITS) - 1));
+            heights[n] = (float) getHeight(latitude[n], longitude[n]);
+        }
+    }
+
+    /**
+     * Load and decode everything needed to interpolate a batch of points,
+     * without interpolating anything: the tiles the points fall in, and the
+     * rows of those tiles around each point. This is meant to be called on
+     * one thread a batch or two ahead of getHeights on another, so that
+     * decoding and interpolation overlap. It does not count towards the cache
+     * statistics.
+     *
+     * @param latitude latitudes (WGS84) of the points
+     * @param longitude longitudes (WGS84) of the points
+     * @param count the number of points, starting at index 0
+     * @throws MissingDataFileException if a tile cannot be read or downloaded
+     */
+    public void preload(double[] latitude, double[] longitude, int count) throws MissingDataFileException {
+        if (!cacheEnable) {
+            return;
+        }
+        int level = overviewLevel;
+        long lastKey = -1;
+        DEMTile page = null;
+        for (int n = 0; n < count; n++) {
+            int lat = (int) Math.floor(latitude[n]);
+            int lon = (int) Math.floor(longitude[n]);
+            long key = tileKey(lat, lon) | ((long) level << LEVELSHIFT);
+            if (key != lastKey) {
+                lastKey = key;
+                page = inventory.covered(lat, lon) ? cache.peek(key) : null;
+                if (page == null && inventory.covered(lat, lon)) {
+                    page = fetchTile(key, lat, lon);
+                }
+            }
+            if (page != null) {
+                int posts = page.width();
+                int row = (posts - 1) - (int) tile(latitude[n], posts);
+                page.decodeRows(row - WINDOWREACH, row + WINDOWREACH + 1);
+            }
+        }
+    }
+
+    public void getHeights(double[] latitude, double[] longitude, float[] heights) throws MissingDataFileException {
+        getHeights(latitude, longitude, heights, latitude.length);
+    }
+
+    public double getHeight(double latitude, double longitude) throws MissingDataFileException {
+        int lat = (int) Math.floor(latitude);
+        int lon = (int) Math.floor(longitude);
+        DEMTile page = getTile(lat, lon);
+        if (page == null) {
+            missing.increment();
+            return MISSING;
+        }
+        int posts = page.width();
+        double x0 = tile(longitude, posts);
+        double y0 = (double) (posts - 1) - tile(latitude, posts);
         int xtile = (int) x0;
         int ytile = (int) y0;
-        String pagename = makename(ns, (int) lat, ew, (int) lon);
-        double[] h = new double[3];
-        double[] x = new double[3];
-        double[] w = new double[3];
-        double[] y = new double[3];
+        if (xtile < WINDOWREACH || ytile < WINDOWREACH || xtile + WINDOWREACH + 1 >= posts || ytile + WINDOWREACH + 1 >= page.rows()) {
+//The stencil may cross the tile's edge, so interpolate in a window which spans the neighbouring tiles
+            page = stencilWindow(threadTiles.get(), page, ytile - WINDOWREACH, xtile - WINDOWREACH, lat, lon);
+            x0 -= xtile - WINDOWREACH;
+            y0 -= ytile - WINDOWREACH;
+        }
+        double height = Double.NaN;
+        switch (interpolation) {
+            case NEAREST:
+                height = nearest(page, x0, y0);
+                break;
+            case BILINEAR:
+                height = bilinear(page, x0, y0);
+                break;
+            case BICUBIC:
+                height = bicubic(page, x0, y0);
+                break;
+            default:
+                break;
+        }
+        if (Double.isNaN(height)) {
+            return quadratic(page, x0, y0);
+        }
+        resultcount.increment();
+        return height;
+    }
+
+    /**
+     * Select the method used to interpolate between DEM posts
+     */
+    public void setInterpolation(Interpolation method) {
+        interpolation = method;
+    }
+
+    public Interpolation getInterpolation() {
+        return interpolation;
+    }
+
+    /**
+     * Height of the nearest post
+     *
+     * @return the height, or Double.NaN if the post is a void
+     */
+    protected double nearest(DEMTile page, double x0, double y0) {
+        int col = (int) Math.round(x0);
+        int row = (int) Math.round(y0);
+        if (row >= page.rows()) {
+            return Double.NaN;
+        }
+        int v = page.getValue(row, col);
+        if (v == missingValue()) {
+            return Double.NaN;
+        }
+        return (double) v;
+    }
+
+    /**
+     * Bilinear interpolation between the four posts surrounding the point
+     *
+     * @return the height, or Double.NaN if any of the posts is a void
+     */
+    protected double bilinear(DEMTile page, double x0, double y0) {
+        int xtile = (int) x0;
+        int ytile = (int) y0;
+        int row1 = Math.min(ytile + 1, page.width() - 1);
+        if (row1 >= page.rows()) {
+            return Double.NaN;
+        }
+        int v00 = page.getValue(ytile, xtile);
+        int v01 = page.getValue(ytile, xtile + 1);
+        int v10 = page.getValue(row1, xtile);
+        int v11 = page.getValue(row1, xtile + 1);
+        int missingValue = missingValue();
+        if (v00 == missingValue || v01 == missingValue || v10 == missingValue || v11 == missingValue) {
+            return Double.NaN;
+        }
+        double fx = x0 - xtile;
+        double fy = y0 - ytile;
+        double top = v00 + fx * (v01 - v00);
+        double bottom = v10 + fx * (v11 - v10);
+        return top + fy * (bottom - top);
+    }
+
+    /**
+     * Bicubic interpolation using Catmull-Rom cubic convolution over the 4 x 4
+     * posts surrounding the point
+     *
+     * @return the height, or Double.NaN if any of the posts is a void or the
+     * stencil extends beyond the edge of the tile
+     */
+    protected double bicubic(DEMTile page, double x0, double y0) {
+        int xtile = (int) x0;
+        int ytile = (int) y0;
+        if (xtile < 1 || xtile + 2 >= page.width() || ytile < 1 || ytile + 2 >= page.rows()) {
+            return Double.NaN;
+        }
+        double fx = x0 - xtile;
+        double fy = y0 - ytile;
+        double cx0 = ((-0.5 * fx + 1.0) * fx - 0.5) * fx;
+        double cx1 = (1.5 * fx - 2.5) * fx * fx + 1.0;
+        double cx2 = ((-1.5 * fx + 2.0) * fx + 0.5) * fx;
+        double cx3 = (0.5 * fx - 0.5) * fx * fx;
+        double cy0 = ((-0.5 * fy + 1.0) * fy - 0.5) * fy;
+        double cy1 = (1.5 * fy - 2.5) * fy * fy + 1.0;
+        double cy2 = ((-1.5 * fy + 2.0) * fy + 0.5) * fy;
+        double cy3 = (0.5 * fy - 0.5) * fy * fy;
+        int missingValue = missingValue();
+        double tot = 0.0;
+        for (int r = 0; r < 4; r++) {
+            int k = ytile - 1 + r;
+            int v0 = page.getValue(k, xtile - 1);
+            int v1 = page.getValue(k, xtile);
+            int v2 = page.getValue(k, xtile + 1);
+            int v3 = page.getValue(k, xtile + 2);
+            if (v0 == missingValue || v1 == missingValue || v2 == missingValue || v3 == missingValue) {
+                return Double.NaN;
+            }
+            double v = cx0 * v0 + cx1 * v1 + cx2 * v2 + cx3 * v3;
+            double cy = r == 0 ? cy0 : r == 1 ? cy1 : r == 2 ? cy2 : cy3;
+            tot += cy * v;
+        }
+        return tot;
+    }
+
+    /**
+     * Quadratic Lagrange interpolation over a 3 x 3 stencil, searching
+     * sideways for valid samples where the stencil contains voids.
+     *
+     * @return the height, or MISSING if three rows with three valid samples
+     * each cannot be found
+     */
+    protected double quadratic(DEMTile page, double x0, double y0) throws MissingDataFileException {
+        int xtile = (int) x0;
+        int ytile = (int) y0;
+//Weights for the usual case of three consecutive valid samples in a row are the same for every row
+        double c0 = weight(x0, xtile, xtile + 1, xtile + 2);
+        double c1 = weight(x0, xtile + 1, xtile, xtile + 2);
+        double c2 = weight(x0, xtile + 2, xtile, xtile + 1);
+        double wa = 0.0, wb = 0.0, wc = 0.0;
+        double ya = 0.0, yb = 0.0, yc = 0.0;
         int k = Math.max(ytile - 1, 0);
+        TileSummary summary = page.summary();
+        if (summary != null && summary.voidFree(k, k + 2, xtile, xtile + 2)) {
+//No voids in the stencil, so there is no need to search for valid samples
+            ya = weightedRow(page, k, xtile, c0, c1, c2);
+            yb = weightedRow(page, k + 1, xtile, c0, c1, c2);
+            yc = weightedRow(page, k + 2, xtile, c0, c1, c2);
+            resultcount.increment();
+            return lagrangian(y0, (double) k, ya, (double) (k + 1), yb, (double) (k + 2), yc);
+        }
         int m = 0;
-        while (m < 3 && k < recordlength() && k < ytile + 3) {
-            CacheEntry page = getRow(pagename, k);
-            if (page == null) {
-                return MISSING;
-            }
-            int i = 0;
-            int j = xtile;
-            while (i < 3 && j < recordlength() && j < xtile + 4) {
-                int v = page.getValue(j);
-                if (v != missingValue()) {
-                    x[i] = (double) j;
-                    h[i] = (double) v;
-                    i++;
-                } else {
-                    missing++;
-                }
-                j++;
-            }
-            j = xtile - 1;
-            while (i < 3 && j >= 0 && j > xtile - 3) {
-                int v = page.getValue(j);
-                if (v != missingValue()) {
-                    x[i] = (double) j;
-                    h[i] = (double) v;
-                    i++;
+        while (m < 3 && k < page.width() && k < ytile + 3) {
+            if (k >= page.rows()) {
+                throw new MissingDataFileException("Hit end of file");
+            }
+            double v = interpolateRow(page, k, xtile, x0, c0, c1, c2);
+            if (!Double.isNaN(v)) {
+                if (m == 0) {
+                    wa = (double) k;
+                    ya = v;
+                } else if (m == 1) {
+                    wb = (double) k;
+                    yb = v;
                 } else {
-                    missing++;
+                    wc = (double) k;
+                    yc = v;
                 }
-                j--;
-            }
-            if (i == 3) {
-                java.awt.geom.Point2D.Double p0 = new java.awt.geom.Point2D.Double(x[0], h[0]);
-                java.awt.geom.Point2D.Double p1 = new java.awt.geom.Point2D.Double(x[1], h[1]);
-                java.awt.geom.Point2D.Double p2 = new java.awt.geom.Point2D.Double(x[2], h[2]);
-                y[m] = lagrangian(x0, p0, p1, p2);
-                w[m] = (double) k;
                 m++;
             }
             k++;
         }
         if (m == 3) {
-            java.awt.geom.Point2D.Double q0 = new java.awt.geom.Point2D.Double(w[0], y[0]);
-            java.awt.geom.Point2D.Double q1 = new java.awt.geom.Point2D.Double(w[1], y[1]);
-            java.awt.geom.Point2D.Double q2 = new java.awt.geom.Point2D.Double(w[2], y[2]);
-            double height = lagrangian(y0, q0, q1, q2);
-            resultcount++;
+            double height = lagrangian(y0, wa, ya, wb, yb, wc, yc);
+            resultcount.increment();
             return height;
         }
         return MISSING;
     }
 
-    protected CacheEntry getRow(String name, int ytile) throws MissingDataFileException {
-        tries++;
-        cycle++;
-        String shortname = String.format("%s#%04d", name, ytile);
-        if (cacheEnable) {
-            CacheEntry page = cache.get(shortname);
-            if (page != null) {
-                hits++;
-                page.setLastUsed();
-                return page;
+    private static double weightedRow(DEMTile page, int k, int xtile, double c0, double c1, double c2) {
+        double tot = 0.0;
+        tot += c0 * (double) page.getValue(k, xtile);
+        tot += c1 * (double) page.getValue(k, xtile + 1);
+        tot += c2 * (double) page.getValue(k, xtile + 2);
+        return tot;
+    }
+
+    /**
+     * Interpolate along one row of a tile using three valid samples, searching
+     * first eastwards from xtile and then westwards for samples which are not
+     * voids.
+     *
+     * @param page the tile
+     * @param k the row number
+     * @param xtile the column at or immediately west of the point
+     * @param x0 the fractional column of the point
+     * @param c0 weight of column xtile when it and the next two are all valid
+     * @param c1 weight of column xtile + 1 in the same case
+     * @param c2 weight of column xtile + 2 in the same case
+     * @return the interpolated height, or Double.NaN if three valid samples
+     * cannot be found
+     */
+    protected double interpolateRow(DEMTile page, int k, int xtile, double x0, double c0, double c1, double c2) {
+        int missingValue = missingValue();
+        if (xtile + 2 < page.width()) {
+            int v0 = page.getValue(k, xtile);
+            int v1 = page.getValue(k, xtile + 1);
+            int v2 = page.getValue(k, xtile + 2);
+            if (v0 != missingValue && v1 != missingValue && v2 != missingValue) {
+                double tot = 0.0;
+                tot += c0 * (double) v0;
+                tot += c1 * (double) v1;
+                tot += c2 * (double) v2;
+                return tot;
             }
         }
-// Record not in cache or cache not enabled
-        try {
+        double xa = 0.0, xb = 0.0, xc = 0.0;
+        double ha = 0.0, hb = 0.0, hc = 0.0;
+        int i = 0;
+        int j = xtile;
+        while (i < 3 && j < page.width() && j < xtile + 4) {
+            int v = page.getValue(k, j);
+            if (v != missingValue) {
+                if (i == 0) {
+                    xa = (double) j;
+                    ha = (double) v;
+                } else if (i == 1) {
+                    xb = (double) j;
+                    hb = (double) v;
+                } else {
+                    xc = (double) j;
+                    hc = (double) v;
+                }
+                i++;
+            } else {
+                missing.increment();
+            }
+            j++;
+        }
+        j = xtile - 1;
+        while (i < 3 && j >= 0 && j > xtile - 3) {
+            int v = page.getValue(k, j);
+            if (v != missingValue) {
+                if (i == 0) {
+                    xa = (double) j;
+                    ha = (double) v;
+                } else if (i == 1) {
+                    xb = (double) j;
+                    hb = (double) v;
+                } else {
+                    xc = (double) j;
+                    hc = (double) v;
+                }
+                i++;
+            } else {
+                missing.increment();
+            }
+            j--;
+        }
+        if (i == 3) {
+            return lagrangian(x0, xa, ha, xb, hb, xc, hc);
+        }
+        return Double.NaN;
+    }
 
-            String filename = DIRECTORY + name + extn();
-            File infile = new File(filename);
-            if (!infile.isFile()) {
-                String tempname = name + extn();
-                try {
-                    downloadFile(tempname);
-                } catch (IOException e) {
-                    throw new MissingDataFileException(String.format("Unable to dowload missing file %s%n%s%n", tempname, e.toString()));
-                } catch (java.security.KeyManagementException e) {
-                    throw new MissingDataFileException(String.format("Unable to dowload missing file %s%n%s%n", tempname, e.toString()));
-                } catch (java.security.NoSuchAlgorithmException e) {
-                    throw new MissingDataFileException(String.format("Unable to dowload missing file %s%n%s%n", tempname, e.toString()));
+    /**
+     * Get the tile whose south-west corner is at (lat, lon), re-using one
+     * already in the cache where possible. The tile name is only built when
+     * the tile has to be loaded. If an overview level has been selected (see
+     * setSpacing()) the overview tile is returned instead of the full tile.
+     *
+     * @param lat latitude of the tile's southern edge in whole degrees
+     * @param lon longitude of the tile's western edge in whole degrees
+     * @return the tile, or null if the dataset is known to have no tile there
+     * @throws MissingDataFileException if the tile cannot be read or downloaded
+     */
+    protected DEMTile getTile(int lat, int lon) throws MissingDataFileException {
+        if (!inventory.covered(lat, lon)) {
+            return null;
+        }
+        tries.increment();
+        int level = overviewLevel;
+        long key = tileKey(lat, lon) | ((long) level << LEVELSHIFT);
+        if (!cacheEnable) {
+            return loadLevel(lat, lon, level);
+        }
+        ThreadTiles local = threadTiles.get();
+        TileRef last = local.refs[local.current];
+        if (last.key == key && last.generation == generation) {
+            hits.increment();
+            return last.tile;
+        }
+        return pinnedTile(local, key, lat, lon, true);
+    }
+
+    /**
+     * Get a tile through the calling thread's set of pinned tiles, replacing
+     * the least recently used one if the tile is not already there
+     *
+     * @param local the calling thread's tiles
+     * @param key the packed tile key, including the overview level
+     * @param lat latitude of the south-west corner
+     * @param lon longitude of the south-west corner
+     * @param centre true if the tile is the one holding the point, rather than
+     * a neighbour read for the edge of a stencil
+     * @return the tile, or null if the dataset has no tile there
+     * @throws MissingDataFileException if the tile cannot be read or downloaded
+     */
+    private DEMTile pinnedTile(ThreadTiles local, long key, int lat, int lon, boolean centre) throws MissingDataFileException {
+        TileRef[] refs = local.refs;
+//Never displace the tile holding the current point
+        int victim = local.current == 0 ? 1 : 0;
+        for (int n = 0; n < refs.length; n++) {
+            TileRef ref = refs[n];
+            if (ref.key == key && ref.generation == generation) {
+                ref.used = ++local.clock;
+                if (centre) {
+                    hits.increment();
+                    local.current = n;
                 }
+                return ref.tile;
             }
-            in = new java.util.zip.ZipInputStream(new FileInputStream(infile));
-            String entryname = "";
-            do {
-                ZipEntry entry = in.getNextEntry();
-                if(entry==null) throw new MissingDataFileException(String.format("ZIP file %s does not contain expected entry %s",filename,zipEntryName(name)));
-                entryname = entry.getName();
-            } while (!entryname.equalsIgnoreCase(zipEntryName(name)));
-            int recordno = 0;
-            try {
-                int[] heights;
-                while (true) {
-                    heights = readRecord();
-                    int n = heights.length;
-                    if (recordno == ytile) {
-                        break;
+            if (n != local.current && ref.used < refs[victim].used) {
+                victim = n;
+            }
+        }
+        TileRef ref = refs[victim];
+        DEMTile tile = cache.get(key);
+        try {
+            if (tile != null) {
+                if (centre) {
+                    hits.increment();
+                }
+            } else {
+                tile = fetchTile(key, lat, lon);
+            }
+//Publishing the tile pins it; one released in the meantime has to be fetched again
+            ref.tile = tile;
+            while (tile != null && tile.isReleased()) {
+                tile = fetchTile(key, lat, lon);
+                ref.tile = tile;
+            }
+        } catch (MissingDataFileException e) {
+            ref.key = -1;
+            throw e;
+        }
+        ref.key = key;
+        ref.generation = generation;
+        ref.used = ++local.clock;
+        if (centre) {
+            local.current = victim;
+        }
+        return tile;
+    }
+
+    /**
+     * Get a tile next to the one holding the current point, for the part of
+     * a stencil which crosses the tile's edge
+     *
+     * @return the tile, or null if the dataset has no tile there or it cannot
+     * be read
+     */
+    private DEMTile neighbour(ThreadTiles local, int lat, int lon) {
+        if (!inventory.covered(lat, lon)) {
+            return null;
+        }
+        long key = tileKey(lat, lon) | ((long) overviewLevel << LEVELSHIFT);
+        Integer failed = unreadable.get(key);
+        if (failed != null && failed == generation) {
+            return null;
+        }
+        try {
+            if (!cacheEnable) {
+                return loadLevel(lat, lon, overviewLevel);
+            }
+            return pinnedTile(local, key, lat, lon, false);
+        } catch (MissingDataFileException e) {
+//Not retried until the tile source or download setting changes
+            unreadable.put(key, generation);
+            return null;
+        }
+    }
+
+    /**
+     * Copy the posts around a point near the edge of its tile into the
+     * calling thread's stencil window, reading across into the neighbouring
+     * tiles wherever the window extends beyond the tile. Posts which no tile
+     * holds are set to missingValue().
+     *
+     * @param local the calling thread's tiles
+     * @param page the tile holding the point
+     * @param row0 the tile row of the window's top edge (may be negative)
+     * @param col0 the tile column of the window's left edge (may be negative)
+     * @param lat latitude of the tile's southern edge
+     * @param lon longitude of the tile's western edge
+     * @return the window, as a tile
+     * @throws MissingDataFileException if a row cannot be prepared
+     */
+    private DEMTile stencilWindow(ThreadTiles local, DEMTile page, int row0, int col0, int lat, int lon) throws MissingDataFileException {
+        short[] window = local.window.heights;
+        int posts = page.width();
+        int missingValue = missingValue();
+        for (int r = 0; r < WINDOW; r++) {
+            int row = row0 + r;
+            int dy = row < 0 ? -1 : row > posts - 1 ? 1 : 0;
+            int trow = row - dy * (posts - 1);
+            int tlat = lat - dy;
+            int lastdx = 2;
+            DEMTile source = null;
+            for (int c = 0; c < WINDOW; c++) {
+                int col = col0 + c;
+                int dx = col < 0 ? -1 : col > posts - 1 ? 1 : 0;
+                if (dx != lastdx) {
+                    lastdx = dx;
+                    int tlon = lon + dx;
+                    if (tlon >= 180) {
+                        tlon -= 360;
+                    } else if (tlon < -180) {
+                        tlon += 360;
+                    }
+                    source = dx == 0 && dy == 0 ? page : neighbour(local, tlat, tlon);
+                    if (source != null && (source.width() != posts || trow >= source.rows())) {
+                        source = null;
                     }
-                    recordno++;
                 }
-                if (cacheEnable) {
-                    if (cache.size() >= MAX_CACHE_SIZE) {
-//Find the oldest entry and remove it
-                        CacheEntry oldest = null;
-                        long age = cycle;
-                        for (CacheEntry test : cache.values()) {
-                            if (test.lastUsed() < age) {
-                                age = test.lastUsed();
-                                oldest = test;
-                            }
-                        }
-                        String key = oldest.getName();
-                        cache.remove(key);
+                window[r * WINDOW + c] = source == null ? (short) missingValue : (short) source.getValue(trow, col - dx * (posts - 1));
+            }
+        }
+        return local.window;
+    }
+
+    /**
+     * Load a tile into the cache. Only one thread loads a given tile; any
+     * others wanting the same tile wait for that load to finish, but threads
+     * loading different tiles do not wait for each other.
+     *
+     * @param key the packed tile key, including the overview level
+     * @param lat latitude of the south-west corner
+     * @param lon longitude of the south-west corner
+     * @return the tile, or null if the dataset has no tile there
+     * @throws MissingDataFileException if the tile cannot be read or downloaded
+     */
+    private DEMTile fetchTile(final long key, final int lat, final int lon) throws MissingDataFileException {
+        FutureTask<DEMTile> task = new FutureTask<DEMTile>(new Callable<DEMTile>() {
+            @Override
+            public DEMTile call() throws MissingDataFileException {
+                DEMTile tile = cache.peek(key);
+                if (tile == null) {
+                    tile = loadLevel(lat, lon, (int) (key >>> LEVELSHIFT));
+                    if (tile != null) {
+                        tile = residentTile(tile);
+                        cache.put(key, tile);
                     }
-                    CacheEntry page = new CacheEntry(shortname, heights);
-                    cache.put(shortname, page);
-                    return page;
                 }
-                CacheEntry page = new CacheEntry(shortname, heights);
-                return page;
-            } catch (EOFException e) {
-                throw new MissingDataFileException("Hit end of file");
+                return tile;
+            }
+        });
+        FutureTask<DEMTile> pending = loading.putIfAbsent(key, task);
+        if (pending == null) {
+            pending = task;
+            task.run();
+        }
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MissingDataFileException("Interrupted while loading a DEM tile");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof MissingDataFileException) {
+                throw (MissingDataFileException) cause;
+            }
+            throw new MissingDataFileException(cause.toString());
+        } finally {
+            if (pending == task) {
+                loading.remove(key, task);
+            }
+        }
+    }
+
+    /**
+     * Prepare a newly loaded tile for the cache. If off-heap tiles are
+     * enabled, the tile is copied into the TileArena so that it occupies no
+     * Java heap while it is resident. Memory-mapped tiles are already off the
+     * heap and are left alone.
+     *
+     * @param tile the loaded tile
+     * @return the tile to cache
+     */
+    protected DEMTile residentTile(DEMTile tile) {
+        if (arena == null || tile instanceof MappedTile || tile instanceof DirectTile) {
+            return tile;
+        }
+        DEMTile copy = arena.copy(tile);
+        copy.setSummary(tile.summary());
+        return copy;
+    }
+
+    /**
+     * Discard every cached tile, and the tiles each thread last used. Call it
+     * when no thread is reading heights, for example at the end of a run;
+     * off-heap memory held by the tiles is then returned to the system.
+     */
+    public void releaseTiles() {
+        cache.clear();
+        generation++;
+        synchronized (threadTileSets) {
+            for (ThreadTiles local : threadTileSets) {
+                for (TileRef ref : local.refs) {
+                    ref.tile = null;
+                }
+            }
+        }
+        if (arena != null) {
+            arena.trim();
+        }
+    }
+
+    /**
+     * Stop using the reader. It stops listening to the component it was
+     * created for, so that the component no longer keeps it reachable,
+     * discards its cached tiles and closes its tile packs; its fallbacks are
+     * closed too. The reader must not be used afterwards.
+     */
+    public void close() {
+        component.removePropertyChangeListener(listener);
+        releaseTiles();
+        for (TilePack pack : openPacks) {
+            try {
+                pack.close();
+            } catch (IOException e) {
+                //Nothing more can be done with it
+            }
+        }
+        openPacks.clear();
+        for (DEMReader fallback : fallbacks) {
+            fallback.close();
+        }
+    }
+
+    /**
+     * @return the number of bytes of off-heap memory allocated for tiles
+     */
+    public long offHeapBytes() {
+        return arena == null ? 0 : arena.allocatedBytes();
+    }
+
+    /**
+     * Load a tile at an overview level. An overview is built from the full
+     * tile the first time it is needed and saved alongside the data files,
+     * so later runs read only the small overview. It is built again if the
+     * tile's data file has changed since.
+     *
+     * @param level 0 for the full tile, or n for the overview decimated by 2^n
+     * @return the tile, or null if the dataset has no tile there
+     */
+    private DEMTile loadLevel(int lat, int lon, int level) throws MissingDataFileException {
+        if (level == 0) {
+            return loadRecorded(lat, lon);
+        }
+        int factor = 1 << level;
+        int posts = ((recordlength() - 1) >> level) + 1;
+        String name = String.format("%s_%dx", tileName(lat, lon), factor);
+        File saved = overviews.rawFile(name);
+        try {
+            if (overviews.contains(name) && saved.lastModified() >= new File(DIRECTORY + tileName(lat, lon) + extn()).lastModified()) {
+                return overviews.map(name, posts, false);
+            }
+        } catch (IOException e) {
+            //Rebuild it below
+        }
+        DEMTile full = loadRecorded(lat, lon);
+        if (full == null) {
+            return null;
+        }
+        ArrayTile overview = ArrayTile.decimate(name, full, factor, missingValue());
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(2 * posts * posts);
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (int row = 0; row < overview.rows(); row++) {
+                for (int col = 0; col < posts; col++) {
+                    out.writeShort(overview.getValue(row, col));
+                }
             }
+            out.close();
+            saved.delete(); //Out of date, if it is there at all
+            overviews.extract(name, new ByteArrayInputStream(bytes.toByteArray()));
         } catch (IOException e) {
-            throw new MissingDataFileException("Unable to read file - " + e.toString());
+            //Not saved; it will be built again next time
+        }
+        return overview;
+    }
+
+    /**
+     * Choose the coarsest overview level whose post spacing is no wider than
+     * the spacing of the grid being generated.
+     *
+     * @param metres the grid spacing in metres
+     */
+    public void setSpacing(double metres) {
+        double posting = METRES_PER_ARCSECOND * 3600.0 / (recordlength() - 1);
+        int level = 0;
+        while (level < maxOverviewLevel() && posting * (2 << level) <= metres) {
+            level++;
         }
+        overviewLevel = level;
     }
 
-    public int[] readRecord() throws EOFException, IOException {
-        byte[] buffer = new byte[recordlength() * 2];
-        int[] outbuffer = new int[recordlength()];
-        int sofar = 0;
-        //Keep reading until we have the whole record
-        while (sofar < recordlength() * 2) {
-            int res = in.read(buffer, sofar, recordlength() * 2 - sofar);
-            if (res == -1) {
-                throw new EOFException();
+    /**
+     * @return the overview level in use; 0 means full resolution
+     */
+    public int getOverviewLevel() {
+        return overviewLevel;
+    }
+
+    /**
+     * @return the coarsest overview level this reader may use
+     */
+    protected int maxOverviewLevel() {
+//Overviews are named after the tiles, so they cannot distinguish filled tiles from the originals
+        return fillsVoids() ? 0 : MAXLEVEL;
+    }
+
+    /**
+     * Load a tile and record the outcome in the tile inventory
+     *
+     * @return the tile, or null if the dataset has no tile there
+     */
+    private DEMTile loadRecorded(int lat, int lon) throws MissingDataFileException {
+        String name = tileName(lat, lon);
+        try {
+            DEMTile tile = loadTile(lat, lon);
+            tile.setSummary(summarise(name, tile));
+            File data = new File(DIRECTORY + name + extn());
+            if (data.isFile()) {
+                inventory.markAvailable(name, data);
+                if (!fillsVoids() && tile.summary() != null) {
+                    inventory.markVoids(name, tile.summary().voids());
+                }
             }
-            sofar += res;
+            return tile;
+        } catch (TileAbsentException e) {
+            inventory.markAbsent(lat, lon, name, e.source());
+            return null;
         }
-        for (int i = 0; i < recordlength(); i++) {
-            short temp;
-            if (littleendian()) {
-                temp = (short) (buffer[2 * i + 1] << 8 | (0xff & buffer[2 * i]));
-            } else {
-                temp = (short) (buffer[2 * i] << 8 | (0xff & buffer[2 * i + 1]));
+    }
+
+    /**
+     * Get the summary of a newly loaded full-resolution tile, reading it from
+     * the summary directory if it has been saved since the tile's data last
+     * changed, and otherwise building and saving it. A tile which decodes its
+     * rows only as they are needed is not read in full just to summarise it.
+     *
+     * @return the summary, or null if it has not been saved and the tile is
+     * not fully decoded
+     */
+    private TileSummary summarise(String name, DEMTile tile) {
+        File file = summaryFile(name);
+        if (file.isFile() && file.lastModified() >= dataModified(name)) {
+            try {
+                TileSummary summary = TileSummary.read(file);
+                if (summary.rows() == tile.rows() && summary.columns() == tile.width()) {
+                    return summary;
+                }
+            } catch (IOException e) {
+                //Build it again below
             }
-            outbuffer[i] = temp;
         }
-        return outbuffer;
+        if (!tile.isDecoded()) {
+            return null;
+        }
+        TileSummary summary = TileSummary.of(tile, missingValue());
+        try {
+            file.getParentFile().mkdirs();
+            summary.write(file);
+        } catch (IOException e) {
+            //Not saved; it will be built again next time
+        }
+        return summary;
     }
 
-    public double tile(double x) {
-        double q = Math.floor(x);
-        double r = (recordlength() - 1) * (x - q);
-        return r;
+    /**
+     * @return the summary file for a full-resolution tile, in a directory
+     * named after the reader's fallback chain
+     */
+    private File summaryFile(String name) {
+        String slash = System.getProperty("file.separator");
+        return new File(DIRECTORY + "summary" + slash + chainName() + slash + name + TileSummary.EXTN);
     }
 
-    public double frac(int tile) {
-        double x = (double) tile / (double) (recordlength() - 1);
-        return x;
+    /**
+     * @return the time the data behind a tile last changed
+     */
+    private long dataModified(String name) {
+        long modified = new File(DIRECTORY + name + extn()).lastModified();
+        if (fillsVoids()) {
+            String slash = System.getProperty("file.separator");
+            modified = Math.max(modified, new File(DIRECTORY + "filled" + slash + chainName() + slash + name + ".raw").lastModified());
+        }
+        return modified;
     }
 
-    protected void downloadFile(String filename) throws java.security.KeyManagementException, java.security.NoSuchAlgorithmException, IOException, MissingDataFileException {
-        if (!download || !downloadable()) {
+    /**
+     * @return the names of the datasets in the reader's fallback chain,
+     * joined by '+', and "inpainted" at the end if voids are inpainted
+     */
+    private String chainName() {
+        StringBuilder chain = new StringBuilder(inventoryName());
+        for (DEMReader reader : fallbacks) {
+            chain.append('+').append(reader.inventoryName());
+        }
+        if (inpaint) {
+            chain.append('+').append(INPAINTED);
+        }
+        return chain.toString();
+    }
 
-            String msg = String.format("Needs data file %s - DEM not downloadable or auto-download is disabled", filename);
-            throw new MissingDataFileException(msg);
+    /**
+     * Start loading, in the background, the tiles covering an area so that
+     * they are already resident (or at least on their way) when the grid
+     * reaches them. Tiles are requested from north to south, the order in
+     * which a grid is generated, and no more are requested than the tile cache
+     * can hold. Tiles which cannot be loaded are skipped here; the error is
+     * reported in the usual way if and when the tile is actually needed.
+     *
+     * @param south latitude of the southernmost row of tiles
+     * @param west longitude of the westernmost column of tiles
+     * @param north latitude of the northernmost row of tiles
+     * @param east longitude of the easternmost column of tiles
+     */
+    public void prefetch(int south, int west, int north, int east) {
+        if (!cacheEnable) {
+            return;
+        }
+        final int level = overviewLevel;
+        long posts = ((recordlength() - 1) >> level) + 1;
+        long tilebytes = 2L * posts * posts;
+        long limit = Math.max(1, cache.capacity() / tilebytes);
+        long count = (long) (north - south + 1) * (east - west + 1);
+        if (count <= 0) {
+            return;
+        }
+        int threads = (int) Math.min(Math.min(count, limit), PREFETCH_THREADS);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DEM tile prefetch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        int requested = 0;
+        for (int lat = north; lat >= south && requested < limit; lat--) {
+            for (int lon = west; lon <= east && requested < limit; lon++) {
+                final int tlat = lat;
+                final int tlon = lon;
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        long key = tileKey(tlat, tlon) | ((long) level << LEVELSHIFT);
+                        if (inventory.covered(tlat, tlon) && cache.peek(key) == null) {
+                            try {
+                                fetchTile(key, tlat, tlon);
+                            } catch (MissingDataFileException e) {
+                                //Reported when the tile is needed
+                            }
+                        }
+                    }
+                });
+                requested++;
+            }
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * Get the tile whose south-west corner is at (lat, lon). By default this
+     * is loadTile(tileName(lat, lon)); sub-classes which build tiles from
+     * more than one dataset need the position as well as the name.
+     *
+     * @param lat latitude of the south-west corner
+     * @param lon longitude of the south-west corner
+     * @return the decoded tile
+     * @throws MissingDataFileException if the tile cannot be read or downloaded
+     */
+    protected DEMTile loadTile(int lat, int lon) throws MissingDataFileException {
+        String name = tileName(lat, lon);
+        if (!fillsVoids() || inventory.voids(name) == 0) {
+            return loadTile(name);
+        }
+        RawTileStore store = filledStore();
+        File filled = store.rawFile(name);
+        if (filled.isFile() && filled.lastModified() >= new File(DIRECTORY + name + extn()).lastModified()) {
+            try {
+                return store.map(name, recordlength(), false);
+            } catch (IOException e) {
+                //Build it again below
+            }
+        }
+        DEMTile source = loadTile(name);
+        int posts = recordlength();
+        int rows = source.rows();
+        short[] heights = new short[posts * rows];
+        int voids = 0;
+        for (int k = 0; k < rows; k++) {
+            for (int i = 0; i < posts; i++) {
+                int v = source.getValue(k, i);
+                heights[k * posts + i] = (short) v;
+                if (v == missingValue()) {
+                    voids++;
+                }
+            }
         }
-        String urlString = getProperty(TerrainProperties.FTP) + getProperty(TerrainProperties.REGION) + "/" + filename;
-        java.net.URL url = new java.net.URL(urlString);
-        setMessage(String.format("Downloading data: %s", filename));
-        HttpsURLConnection con = (HttpsURLConnection)url.openConnection();
-        InputStream ins = con.getInputStream();
-//        java.io.DataInputStream instream = new java.io.DataInputStream(ins);
-        String outfilename = DIRECTORY + filename;
-        File outfile = new java.io.File(outfilename);
-        DataOutputStream outstream = new DataOutputStream(new FileOutputStream(outfile));
-        long available = ins.available();
-        int bytecount = 0;
-        long sofar = 0;
-        long guess = 900000;
-        while (bytecount != -1) {
-            byte[] buffer = new byte[BUFFERLENGTH];
-            bytecount = ins.read(buffer);
-            if (bytecount > 0) {
-                String str = new String(buffer);
-                outstream.write(buffer, 0, bytecount);
-                sofar += bytecount;
-                int progress = (int) (100 * sofar / guess);
-                setProgress(progress);
-                setMessage(String.format("Downloading data: %s", filename));
+        File data = new File(DIRECTORY + name + extn());
+        if (data.isFile()) {
+            inventory.markAvailable(name, data);
+            inventory.markVoids(name, voids);
+        }
+        if (voids == 0) {
+            return source;
+        }
+        int[] where = new int[voids];
+        int count = 0;
+        for (int n = 0; n < heights.length; n++) {
+            if (heights[n] == missingValue()) {
+                where[count++] = n;
+            }
+        }
+        for (DEMReader fallback : fallbacks) {
+            if (count == 0) {
+                break;
+            }
+            count = fillVoids(fallback, heights, where, count, lat, lon);
+        }
+        if (count > 0 && inpaint) {
+            VoidInpainter.fill(heights, rows, posts, missingValue());
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(2 * heights.length);
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (short h : heights) {
+                out.writeShort(h);
+            }
+            out.close();
+            store.extract(name, new ByteArrayInputStream(bytes.toByteArray()));
+        } catch (IOException e) {
+            //Not saved; it will be built again next time
+        }
+        return new ArrayTile(name, heights, posts, rows);
+    }
+
+    /**
+     * Fill voids in a tile with heights resampled from a fallback reader, a
+     * batch at a time. Only the fallback's tiles and rows around the voids
+     * are read.
+     *
+     * @param fallback the reader to resample
+     * @param heights the tile's heights, updated in place
+     * @param where the positions in heights of the voids
+     * @param count the number of voids
+     * @param lat latitude of the tile's southern edge
+     * @param lon longitude of the tile's western edge
+     * @return the number of voids the fallback could not fill. Their
+     * positions are moved to the start of where.
+     * @throws MissingDataFileException if the fallback's data cannot be read
+     */
+    private int fillVoids(DEMReader fallback, short[] heights, int[] where, int count, int lat, int lon) throws MissingDataFileException {
+        int posts = recordlength();
+        int batch = Math.min(count, FILLBATCH);
+        double[] lats = new double[batch];
+        double[] lons = new double[batch];
+        float[] fill = new float[batch];
+        int remaining = 0;
+        for (int start = 0; start < count; start += batch) {
+            int size = Math.min(batch, count - start);
+            for (int q = 0; q < size; q++) {
+                int n = where[start + q];
+                lats[q] = lat + (1.0 - frac(n / posts));
+                lons[q] = lon + frac(n % posts);
+            }
+            fallback.getHeights(lats, lons, fill, size);
+            for (int q = 0; q < size; q++) {
+                int n = where[start + q];
+                if (fill[q] == MISSING) {
+                    where[remaining++] = n;
+                } else {
+                    heights[n] = (short) Math.round(fill[q]);
+                }
             }
         }
-        outstream.close();
-        ins.close();
-        setMessage("");
-        return;
+        return remaining;
+    }
+
+    /**
+     * Add a reader to the end of this reader's fallback chain. Wherever one
+     * of this reader's tiles has voids, they are filled from the first
+     * fallback which has data there, and the filled tile is saved in the data
+     * directory for later sessions. Tiles known to have no voids are read
+     * exactly as before, and fallbacks are only opened for tiles with voids.
+     *
+     * @param fallback the reader to fill voids from
+     * @return this reader, so that calls can be chained
+     */
+    public synchronized DEMReader addFallback(DEMReader fallback) {
+        fallbacks.add(fallback);
+        filledStore = null;
+        cache.clear();
+        generation++;
+        return this;
+    }
+
+    /**
+     * Turn void inpainting on or off. When it is on, any voids left in a
+     * tile after the fallback chain has been tried (or all of them, if there
+     * are no fallbacks) are filled with a smooth surface by VoidInpainter
+     * when the tile is loaded. The filled tile is saved in the data
+     * directory like any other filled tile, so the work is done once.
+     *
+     * @param flag true to inpaint voids
+     */
+    public synchronized void setInpainting(boolean flag) {
+        if (inpaint == flag) {
+            return;
+        }
+        inpaint = flag;
+        filledStore = null;
+        cache.clear();
+        generation++;
+    }
+
+    public boolean getInpainting() {
+        return inpaint;
+    }
+
+    /**
+     * @return true if the reader's tiles are filled from fallbacks or by
+     * inpainting, rather than read as they are
+     */
+    private boolean fillsVoids() {
+        return inpaint || !fallbacks.isEmpty();
     }
-    protected class CacheEntry {
 
-        public CacheEntry(String name, int[] buffer) {
-            page_name = name;
-            last_used = cycle;
-            data = buffer;
+    /**
+     * @return the store for filled tiles, in a directory named after the
+     * whole fallback chain
+     * @throws MissingDataFileException if the directory cannot be created
+     */
+    private synchronized RawTileStore filledStore() throws MissingDataFileException {
+        if (filledStore == null) {
+            String slash = System.getProperty("file.separator");
+            filledStore = new RawTileStore(DIRECTORY + "filled" + slash + chainName() + slash);
         }
+        return filledStore;
+    }
+
+    /**
+     * @return the readers voids are filled from, in order
+     */
+    public List<DEMReader> getFallbacks() {
+        return java.util.Collections.unmodifiableList(fallbacks);
+    }
+
+    /**
+     * @param lat latitude of the tile's southern edge
+     * @param lon longitude of the tile's western edge
+     * @return the number of voids in this reader's own data for the tile,
+     * before any filling, or -1 if they have not been counted yet
+     */
+    public long tileVoids(int lat, int lon) {
+        return inventory.voids(tileName(lat, lon));
+    }
 
-        public void setLastUsed() {
-            last_used = cycle;
+    /**
+     * Get a tile from the reader's TileSource. By default this reads the
+     * tile's ZIP file from the data directory (or its extracted copy, if the
+     * raw tile store is enabled), downloading the file first if it is not
+     * already present.
+     *
+     * @param name the tile name
+     * @return the decoded tile
+     * @throws MissingDataFileException if the tile cannot be read or downloaded
+     */
+    protected DEMTile loadTile(String name) throws MissingDataFileException {
+        DEMTile tile = source.getTile(name, this);
+        if (tile == null) {
+            String msg = String.format("Needs data file %s - DEM not downloadable or auto-download is disabled", name + extn());
+            throw new MissingDataFileException(msg);
         }
+        return tile;
+    }
 
-        public String getName() {
-            return page_name;
+    /**
+     * @return the address of the directory the reader downloads tiles from,
+     * as set by the FTP and REGION properties, or an empty string if the
+     * dataset is not downloadable
+     */
+    protected String tileServer() {
+        if (!downloadable()) {
+            return "";
         }
+        return getProperty(TerrainProperties.FTP) + getProperty(TerrainProperties.REGION) + "/";
+    }
 
-        public int getValue(int i) {
-            return data[i];
+    /**
+     * Build the reader's standard chain of tile sources: any tile packs for
+     * this dataset in the data directory, then extracted raw tiles (if
+     * enabled), then local ZIP files, then a download from the server
+     * named in the properties (if the dataset is downloadable and
+     * auto-download is on)
+     */
+    private TileSource defaultSource() {
+        ZipTileSource zips = new ZipTileSource(DIRECTORY, rawStore);
+        java.util.List<TileSource> chain = new java.util.ArrayList<TileSource>();
+        File[] packs = new File(DIRECTORY).listFiles();
+        if (packs != null) {
+            java.util.Arrays.sort(packs);
+            for (File pack : packs) {
+                if (pack.isFile() && pack.getName().endsWith(TilePack.EXTN)) {
+                    try {
+                        if (TilePack.datasetName(pack).equals(inventoryName())) { //Only this dataset's packs are kept open
+                            TilePack tiles = new TilePack(pack);
+                            chain.add(tiles);
+                            openPacks.add(tiles);
+                        }
+                    } catch (IOException e) {
+                        //Not a usable pack; ignore it
+                    }
+                }
+            }
+        }
+        if (rawStore != null) {
+            chain.add(new RawTileSource(rawStore));
         }
+        chain.add(zips);
+        TileSource local = chain.size() == 1 ? zips : new ChainedTileSource(chain.toArray(new TileSource[chain.size()]));
+        if (!downloadable()) {
+            return local;
+        }
+        HttpTileSource server = new HttpTileSource(null, DIRECTORY, zips) {
+            @Override
+            protected String baseUrl() {
+                return tileServer();
+            }
 
-        public long lastUsed() {
-            return last_used;
+            @Override
+            public DEMTile getTile(String name, TileFormat format) throws MissingDataFileException {
+                if (!download) {
+                    return null;
+                }
+                setMessage(String.format("Downloading data: %s", name + format.extn()));
+                try {
+                    return super.getTile(name, format);
+                } finally {
+                    setMessage("");
+                }
+            }
+        };
+        server.setListener(new TileDownloader.Listener() {
+            @Override
+            public void progress(String filename, long sofar, long total) {
+                if (total > 0) {
+                    setProgress((int) (100 * sofar / total));
+                }
+            }
+        });
+        return new ChainedTileSource(local, server);
+    }
+
+    /**
+     * Write the tiles covering an area to a tile pack, which will be used in
+     * preference to the dataset's own files if it is placed in the data
+     * directory. Tiles the dataset does not have are left out. The pack
+     * holds the dataset's own tiles exactly as recorded: voids are never
+     * filled from fallbacks or inpainted, since the pack is labelled with,
+     * and read back as, this dataset alone. If the pack cannot be
+     * completed, no file is left behind.
+     *
+     * @param pack the file to create
+     * @param south latitude of the southernmost row of tiles
+     * @param west longitude of the westernmost column of tiles
+     * @param north latitude of the northernmost row of tiles
+     * @param east longitude of the easternmost column of tiles
+     * @return the number of tiles written
+     * @throws MissingDataFileException if a tile cannot be read or the pack cannot be written
+     */
+    public int writePack(File pack, int south, int west, int north, int east) throws MissingDataFileException {
+        TilePackWriter writer = new TilePackWriter(pack, inventoryName(), this);
+        boolean written = false;
+        try {
+            for (int lat = north; lat >= south; lat--) {
+                for (int lon = west; lon <= east; lon++) {
+                    if (inventory.covered(lat, lon)) {
+                        String name = tileName(lat, lon);
+                        try {
+                            writer.add(loadTile(name));
+                        } catch (TileAbsentException e) {
+                            inventory.markAbsent(lat, lon, name, e.source());
+                        }
+                    }
+                }
+            }
+            int count = writer.close();
+            written = true;
+            return count;
+        } catch (IOException e) {
+            throw new MissingDataFileException(String.format("Unable to write tile pack %s - %s", pack.getPath(), e.toString()));
+        } finally {
+            if (!written) {
+                writer.abort();
+            }
         }
-        private long last_used;
-        private String page_name;
-        private int[] data;
+    }
+
+    /**
+     * @return the source from which tiles are loaded
+     */
+    public TileSource getTileSource() {
+        return source;
+    }
+
+    /**
+     * Replace the source from which tiles are loaded, for example to put a
+     * MemoryTileSource or a local mirror in front of the standard chain
+     * returned by getTileSource(). Cached tiles are discarded.
+     *
+     * @param tiles the new source
+     */
+    public void setTileSource(TileSource tiles) {
+        source = tiles;
+        cache.clear();
+        generation++;
+    }
+
+    /**
+     * Read and decode one record (row) of 16-bit heights from a stream
+     *
+     * @param in the stream, positioned at the start of the record
+     * @param buffer work area of at least recordlength() * 2 bytes
+     * @param outbuffer destination for the decoded heights
+     * @param offset position in outbuffer of the first height in the record
+     * @throws EOFException if the stream ends part-way through the record
+     * @throws IOException if the stream cannot be read
+     */
+    public void readRecord(InputStream in, byte[] buffer, short[] outbuffer, int offset) throws EOFException, IOException {
+        ZipTileSource.readRecord(in, buffer, outbuffer, offset, this);
+    }
+
+    public double tile(double x) {
+        return tile(x, recordlength());
+    }
+
+    /**
+     * @param x latitude or longitude
+     * @param posts the number of posts across the tile
+     * @return the position of x within its tile, in posts from the western
+     * or southern edge
+     */
+    protected static double tile(double x, int posts) {
+        double q = Math.floor(x);
+        double r = (posts - 1) * (x - q);
+        return r;
+    }
+
+    public double frac(int tile) {
+        double x = (double) tile / (double) (recordlength() - 1);
+        return x;
+    }
+
+    /**
+     * Quadratic Lagrange interpolation through three points. This gives
+     * exactly the same result as the general form below, without allocating.
+     */
+    public static double lagrangian(double x, double x0, double y0, double x1, double y1, double x2, double y2) {
+        double tot = 0.0;
+        tot += weight(x, x0, x1, x2) * y0;
+        tot += weight(x, x1, x0, x2) * y1;
+        tot += weight(x, x2, x0, x1) * y2;
+        return tot;
+    }
+
+    /**
+     * The Lagrange basis weight at x of node xi, where xa and xb are the other
+     * two nodes in the order they appear in the general form.
+     */
+    private static double weight(double x, double xi, double xa, double xb) {
+        return ((x - xa) / (xi - xa)) * ((x - xb) / (xi - xb));
     }
 
     public static double lagrangian(double x, java.awt.geom.Point2D.Double... points) {
@@ -318,36 +1434,58 @@ public abstract class DEMReader extends PropertyChangeSupport {
     }
 
     public long hits() {
-        return hits;
+        return hits.sum();
     }
 
     public long resultcount() {
-        return resultcount;
+        return resultcount.sum();
     }
 
     public long tries() {
-        return tries;
+        return tries.sum();
     }
 
     public long missing() {
-        return missing;
+        return missing.sum();
+    }
+
+    /**
+     * @return the number of times a tile had to be loaded because it was not in the cache
+     */
+    public long misses() {
+        return cache.misses();
+    }
+
+    /**
+     * @return the number of tiles evicted from the cache to stay within its size limit
+     */
+    public long evictions() {
+        return cache.evictions();
+    }
+
+    /**
+     * @return the number of bytes of tile data currently held in the cache
+     */
+    public long residentBytes() {
+        return cache.residentBytes();
     }
 
     public void resetCounts() {
-        hits = 0;
-        tries = 0;
-        missing = 0;
-        resultcount = 0;
+        hits.reset();
+        tries.reset();
+        missing.reset();
+        resultcount.reset();
+        cache.resetCounts();
     }
 
-    private void setMessage(String msg) {
+    private synchronized void setMessage(String msg) {
         if (!msg.equals(lastMessage)) {
             firePropertyChange("message", lastMessage, msg);
         }
         lastMessage = msg;
     }
 
-    private void setProgress(int val) {
+    private synchronized void setProgress(int val) {
         int v = Math.min(100, val);
         v = Math.max(0, v);
         if (lastValue != v) {
@@ -362,6 +1500,10 @@ public abstract class DEMReader extends PropertyChangeSupport {
 
     public void setDownload(boolean flag) {
         download = flag;
+        unreadable.clear();
+        for (DEMReader fallback : fallbacks) {
+            fallback.setDownload(flag);
+        }
     }
 
     public PropertyChangeListener[] getPropertyChangeListeners() {
@@ -383,8 +1525,33 @@ public abstract class DEMReader extends PropertyChangeSupport {
         }
     };
     public void setLegacy(boolean t) {
+        if (t != useLegacy) {
+            cache.clear(); //Legacy and current datasets share tile keys but not files
+            generation++;
+        }
         useLegacy = t ;
     }
+    /**
+     * @return the latitude of the southernmost row of tiles the dataset can have
+     */
+    public int southernLimit() {
+        return -90;
+    }
+
+    /**
+     * @return the latitude of the northernmost row of tiles the dataset can have
+     */
+    public int northernLimit() {
+        return 89;
+    }
+
+    /**
+     * @return the name of the dataset's tile inventory manifest in the data directory
+     */
+    protected String inventoryName() {
+        return getClass().getSimpleName();
+    }
+
     public abstract String datasetName();
 
     public abstract boolean downloadable();
@@ -401,23 +1568,135 @@ public abstract class DEMReader extends PropertyChangeSupport {
     public abstract String copyright();
 
     public abstract String zipEntryName(String name);
-    protected static java.util.zip.ZipInputStream in;
     protected  String DIRECTORY = "";
 //    private static final int DEMSettings.recordlength() = 1201;
-    protected long cycle = 0;
-    protected java.util.HashMap<String, CacheEntry> cache = new java.util.HashMap<String, CacheEntry>();
+    protected TileCache cache;
     protected boolean cacheEnable = true;
-    protected static final int MAX_CACHE_SIZE = 16;
-    protected long hits = 0;
-    protected long tries = 0;
-    protected long missing = 0;
-    protected long resultcount = 0;
+    protected static final long DEFAULT_CACHE_MB = 256;
+    protected RawTileStore rawStore = null;
+    private volatile TileSource source;
+    private RawTileStore overviews;
+    private final List<DEMReader> fallbacks = new CopyOnWriteArrayList<DEMReader>();
+    private final List<TilePack> openPacks = new CopyOnWriteArrayList<TilePack>(); //Opened by defaultSource(), closed by close()
+    private final JComponent component;
+    private volatile boolean inpaint = false;
+    private static final String INPAINTED = "inpainted"; //Last element of the chain name when voids are inpainted
+    private RawTileStore filledStore = null;
+    private static final int FILLBATCH = 65536; //Voids resampled from a fallback in each call
+    private volatile int overviewLevel = 0;
+    private static final int MAXLEVEL = 3; //Overviews are decimated by up to 8 times
+    private static final int LEVELSHIFT = 32; //Overview level is packed into tile keys above the position
+    private static final double METRES_PER_ARCSECOND = 30.87; //Along a meridian
+    protected TileInventory inventory;
+    protected final LongAdder hits = new LongAdder();
+    protected final LongAdder tries = new LongAdder();
+    protected final LongAdder missing = new LongAdder();
+    protected final LongAdder resultcount = new LongAdder();
     public static final double MISSING = -32768.0;
-    protected static final int BUFFERLENGTH = 1024;  
+    private static final int ROWBITS = 12; //Enough for 3601 rows
+    private static final int INDEXBITS = 28; //Batch positions packed below the tile key and row
     protected String lastMessage = "";
-    protected boolean download = true;
+    protected volatile boolean download = true;
     protected int lastValue = 0;
     protected static final java.util.Locale LOCALE = java.util.Locale.UK; //Force use of UK locale for number formatting
-    protected boolean useLegacy = false ;
+    protected volatile boolean useLegacy = false ;
+    private volatile int generation = 0;
+    protected volatile Interpolation interpolation = Interpolation.QUADRATIC;
+    private final ConcurrentHashMap<Long, Integer> unreadable = new ConcurrentHashMap<Long, Integer>(); //Neighbour tiles which could not be read, by generation
+    private final ConcurrentHashMap<Long, FutureTask<DEMTile>> loading = new ConcurrentHashMap<Long, FutureTask<DEMTile>>();
+    private static final int PREFETCH_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    /*
+     * Each thread remembers the tiles it used last so that runs of points in
+     * the same tile, and stencils crossing into a neighbouring tile, do not
+     * contend for the shared cache
+     */
+    private final ThreadLocal<ThreadTiles> threadTiles = new ThreadLocal<ThreadTiles>() {
+        @Override
+        protected ThreadTiles initialValue() {
+            ThreadTiles local = new ThreadTiles();
+            synchronized (threadTileSets) {
+                Iterator<ThreadTiles> it = threadTileSets.iterator();
+                while (it.hasNext()) { //Forget the threads which have finished, such as a previous run's pool
+                    if (!it.next().isLive()) {
+                        it.remove();
+                    }
+                }
+                threadTileSets.add(local);
+            }
+            return local;
+        }
+    };
+    /*
+     * Every live thread's tiles, so that the TileArena can tell which
+     * released tiles are still in use and releaseTiles() can drop them all
+     */
+    private final List<ThreadTiles> threadTileSets = new ArrayList<ThreadTiles>();
+    private TileArena arena = null;
+    private static final int WINDOWREACH = 3; //Posts a stencil may extend beyond the cell holding the point
+    private static final int WINDOW = 2 * WINDOWREACH + 2;
+    private static final int PINNED = 4; //Enough for a stencil at a tile corner
+
+    private static class TileRef {
+
+        long key = -1;
+        volatile DEMTile tile;
+        int generation;
+        long used;
+    }
+
+    /**
+     * The tiles one thread is using: the tile holding its current point and
+     * the neighbours its stencils last reached into. A tile held here is
+     * pinned, so the TileArena will not re-use its memory.
+     */
+    private static class ThreadTiles {
+
+        ThreadTiles() {
+            for (int n = 0; n < PINNED; n++) {
+                refs[n] = new TileRef();
+            }
+        }
+
+        boolean isLive() {
+            Thread thread = owner.get();
+            return thread != null && thread.isAlive();
+        }
+
+        boolean holds(DEMTile tile) {
+            for (TileRef ref : refs) {
+                if (ref.tile == tile) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        final TileRef[] refs = new TileRef[PINNED];
+        int current = 0;
+        long clock = 0;
+        final StencilWindow window = new StencilWindow();
+        final WeakReference<Thread> owner = new WeakReference<Thread>(Thread.currentThread());
+    }
+
+    /**
+     * The posts around a point near a tile edge, gathered from up to four
+     * tiles
+     */
+    private static class StencilWindow extends DEMTile {
+
+        StencilWindow() {
+            super("stencil", WINDOW, WINDOW);
+        }
+
+        @Override
+        public int getValue(int row, int col) {
+            return heights[row * WINDOW + col];
+        }
+
+        @Override
+        public long bytes() {
+            return 2L * heights.length;
+        }
+        final short[] heights = new short[WINDOW * WINDOW];
+    }
 //    protected DEMProfile DEMSettings = DEMProfile.SRTM;
 }
@@ -0,0 +1,100 @@
+package mccombe.terrain;
+
+/**
+ * A DEMTile holds the contents of a single 1 x 1 degree DEM tile. A tile is
+ * decoded or mapped once, when it is first needed, and then serves every later
+ * row lookup without touching the original data file again.
+ *
+ * @author Mike
+ */
+public abstract class DEMTile {
+
+    protected DEMTile(String name, int count, int columns) {
+        tile_name = name;
+        rowcount = count;
+        columncount = columns;
+    }
+
+    public String getName() {
+        return tile_name;
+    }
+
+    /**
+     * @return the number of rows available from the data file
+     */
+    public int rows() {
+        return rowcount;
+    }
+
+    /**
+     * @return the number of samples in each row. This is the dataset's record
+     * length, or less for an overview tile.
+     */
+    public int width() {
+        return columncount;
+    }
+
+    /**
+     * Get a single height value
+     *
+     * @param row the row number, counting from the northern edge
+     * @param col the column number, counting from the western edge
+     * @return the raw height value, which may be the dataset's missingValue()
+     */
+    public abstract int getValue(int row, int col);
+
+    /**
+     * @return the approximate number of bytes of memory occupied by the tile
+     */
+    public abstract long bytes();
+
+    /**
+     * Decode a range of rows now, so that later lookups in them do not have
+     * to. Tiles which are fully decoded when they are loaded do nothing.
+     *
+     * @param first the first row, counting from the northern edge
+     * @param last the last row
+     */
+    public void decodeRows(int first, int last) {
+    }
+
+    /**
+     * @return true if the whole tile is in memory, so reading every post
+     * costs no decoding. Tiles which decode rows only as they are needed
+     * return false.
+     */
+    public boolean isDecoded() {
+        return true;
+    }
+
+    /**
+     * Called by the tile cache when the tile is evicted. Tiles which hold
+     * memory that can be re-used (see DirectTile) give it back here.
+     */
+    public void release() {
+    }
+
+    /**
+     * @return true if the tile has been released and must not be newly used
+     */
+    public boolean isReleased() {
+        return false;
+    }
+
+    /**
+     * @return the tile's voids and block heights, or null if it has not been
+     * summarised
+     */
+    public TileSummary summary() {
+        return summary;
+    }
+
+    void setSummary(TileSummary tileSummary) {
+        summary = tileSummary;
+    }
+
+    private final String tile_name;
+    private final int rowcount;
+    private final int columncount;
+    private TileSummary summary = null;
+}
@@ -37,6 +37,12 @@ public class DefaultProperties extends java.util.Properties {
         this.setProperty("useASTER", "srtm");
         this.setProperty("therionCoordinateSet","OSGB");
         this.setProperty("legacyASTER","false");
+        this.setProperty("extractTiles","false");
+        this.setProperty("tileCacheMB","256");
+        this.setProperty("interpolation","quadratic");
+        this.setProperty("offHeapTiles","false");
+        this.setProperty("inpaintVoids","false");
+        this.setProperty("gridThreads","0");
    }
 }
 
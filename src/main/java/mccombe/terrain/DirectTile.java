@@ -0,0 +1,51 @@
+package mccombe.terrain;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * A DirectTile holds a decoded tile outside the Java heap, in a slab of
+ * direct memory belonging to a TileArena. The garbage collector never copies
+ * or scans the heights, so a large resident working set costs no GC time.
+ * When the tile cache evicts the tile its slab goes back to the arena, which
+ * hands it to a new tile once no thread can still be reading the old one.
+ *
+ * @author Mike
+ */
+public class DirectTile extends DEMTile {
+
+    DirectTile(String name, ByteBuffer buffer, TileArena owner, int count, int columns) {
+        super(name, count, columns);
+        slab = buffer;
+        data = buffer.asShortBuffer();
+        arena = owner;
+        width = columns;
+    }
+
+    @Override
+    public int getValue(int row, int col) {
+        return data.get(row * width + col);
+    }
+
+    @Override
+    public long bytes() {
+        return slab.capacity();
+    }
+
+    @Override
+    public void release() {
+        released = true;
+        arena.release(this);
+    }
+
+    @Override
+    public boolean isReleased() {
+        return released;
+    }
+
+    final ByteBuffer slab;
+    private final ShortBuffer data;
+    private final TileArena arena;
+    private final int width;
+    private volatile boolean released = false;
+}
@@ -0,0 +1,63 @@
+package mccombe.terrain;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * An HttpTileSource downloads a tile's data file from a web server (the NASA
+ * host, or a mirror of it) into a local directory, then hands it to a local
+ * source to be read. Downloads go through a TileDownloader shared by every
+ * HttpTileSource, so several tiles can be in flight at once. A file which
+ * the server reports does not exist raises a TileAbsentException.
+ *
+ * @author Mike
+ */
+public class HttpTileSource implements TileSource {
+
+    /**
+     * @param url the address of the directory holding the data files, ending in "/"
+     * @param path the local directory to download into
+     * @param local the source which reads files from that directory
+     */
+    public HttpTileSource(String url, String path, TileSource local) {
+        baseUrl = url;
+        directory = path;
+        reader = local;
+    }
+
+    /**
+     * @param progress receives progress reports for each download; may be null
+     */
+    public void setListener(TileDownloader.Listener progress) {
+        listener = progress;
+    }
+
+    /**
+     * @return the address of the directory holding the data files
+     */
+    protected String baseUrl() {
+        return baseUrl;
+    }
+
+    @Override
+    public DEMTile getTile(String name, TileFormat format) throws MissingDataFileException {
+        String filename = name + format.extn();
+        String server = baseUrl();
+        try {
+            downloader.download(new URL(server + filename), new File(directory + filename), listener);
+        } catch (FileNotFoundException e) {
+            throw new TileAbsentException(String.format("Server has no data file %s", filename), server);
+        } catch (IOException e) {
+            throw new MissingDataFileException(String.format("Unable to dowload missing file %s%n%s%n", filename, e.toString()));
+        }
+        return reader.getTile(name, format);
+    }
+    private final String baseUrl;
+    private final String directory;
+    private final TileSource reader;
+    private volatile TileDownloader.Listener listener = null;
+    private static final int DOWNLOAD_THREADS = 4; //Tiles downloaded at once, shared by all sources
+    private static final TileDownloader downloader = new TileDownloader(DOWNLOAD_THREADS);
+}
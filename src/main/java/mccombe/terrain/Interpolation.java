@@ -0,0 +1,70 @@
+package mccombe.terrain;
+
+/**
+ * Methods available to DEMReader for interpolating a height between DEM
+ * posts. Wherever a method's stencil includes a void or runs off the edge of
+ * the tile, the reader falls back on QUADRATIC, which searches sideways for
+ * valid samples.
+ *
+ * @author Mike
+ */
+public enum Interpolation {
+
+    /**
+     * Height of the nearest post. Stencil 1 x 1; one sample read per point
+     * and no arithmetic beyond rounding. Suitable when the grid spacing is
+     * several times the DEM spacing.
+     */
+    NEAREST("nearest", 1),
+    /**
+     * Bilinear interpolation between the four surrounding posts. Stencil
+     * 2 x 2; four samples and three linear blends per point.
+     */
+    BILINEAR("bilinear", 2),
+    /**
+     * Quadratic Lagrange interpolation. Stencil 3 x 3; nine samples and four
+     * three-point Lagrange fits per point, plus a sideways search for valid
+     * samples near voids. This is the original TerrainTool method.
+     */
+    QUADRATIC("quadratic", 3),
+    /**
+     * Bicubic (Catmull-Rom cubic convolution) interpolation. Stencil 4 x 4;
+     * sixteen samples and five four-point cubic blends per point. Smoothest
+     * result, with a continuous slope between posts.
+     */
+    BICUBIC("bicubic", 4);
+
+    Interpolation(String name, int size) {
+        propertyName = name;
+        stencil = size;
+    }
+
+    /**
+     * @return the width (and height) of the stencil, in DEM posts
+     */
+    public int stencil() {
+        return stencil;
+    }
+
+    @Override
+    public String toString() {
+        return propertyName;
+    }
+
+    /**
+     * Find the Interpolation named by a property value
+     *
+     * @param name the property value, e.g. "bilinear"
+     * @return the matching Interpolation, or QUADRATIC if there is no match
+     */
+    public static Interpolation fromString(String name) {
+        for (Interpolation method : values()) {
+            if (method.propertyName.equalsIgnoreCase(name)) {
+                return method;
+            }
+        }
+        return QUADRATIC;
+    }
+    private final String propertyName;
+    private final int stencil;
+}
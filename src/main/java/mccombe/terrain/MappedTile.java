@@ -0,0 +1,38 @@
+package mccombe.terrain;
+
+import java.nio.ShortBuffer;
+
+/**
+ * A MappedTile reads heights directly from a raw 16-bit tile file that has
+ * been memory-mapped by a RawTileStore. Nothing is copied or inflated; the
+ * operating system's page cache holds the data and is shared with any other
+ * process reading the same file.
+ *
+ * @author Mike
+ */
+public class MappedTile extends DEMTile {
+
+    /**
+     * @param name the tile name
+     * @param buffer a view of the mapped file, already set to the dataset's byte order
+     * @param recordlength the number of samples in each row
+     */
+    public MappedTile(String name, ShortBuffer buffer, int recordlength) {
+        super(name, Math.min(recordlength, buffer.capacity() / recordlength), recordlength);
+        data = buffer;
+        width = recordlength;
+    }
+
+    @Override
+    public int getValue(int row, int col) {
+        return data.get(row * width + col);
+    }
+
+    @Override
+    public long bytes() {
+        return 2L * data.capacity();
+    }
+
+    private final ShortBuffer data;
+    private final int width;
+}
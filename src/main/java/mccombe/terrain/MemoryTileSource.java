@@ -0,0 +1,31 @@
+package mccombe.terrain;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A MemoryTileSource holds tiles that have been placed in it explicitly, for
+ * example tiles generated or loaded in advance. Tiles stay until they are
+ * removed, independently of the reader's tile cache.
+ *
+ * @author Mike
+ */
+public class MemoryTileSource implements TileSource {
+
+    @Override
+    public DEMTile getTile(String name, TileFormat format) {
+        return tiles.get(name);
+    }
+
+    public void put(DEMTile tile) {
+        tiles.put(tile.getName(), tile);
+    }
+
+    public void remove(String name) {
+        tiles.remove(name);
+    }
+
+    public void clear() {
+        tiles.clear();
+    }
+    private final ConcurrentHashMap<String, DEMTile> tiles = new ConcurrentHashMap<String, DEMTile>();
+}
@@ -16,6 +16,21 @@ public class NASADEMReader extends DEMReader {
         super(item);
     }
 
+    @Override
+    public int southernLimit() {
+        return southernLimit;
+    }
+
+    @Override
+    public int northernLimit() {
+        return northernLimit;
+    }
+
+    @Override
+    protected String inventoryName() {
+        return inventoryName;
+    }
+
     public String datasetName() {
         return name;
     }
@@ -57,4 +72,7 @@ public class NASADEMReader extends DEMReader {
     private static final String extn = ".zip";
     private static final boolean littleendian = false;
     private static final int missingValue = -9999;
+    private static final int southernLimit = -56; //Coverage is 56S to 60N
+    private static final int northernLimit = 59;
+    private static final String inventoryName = "NASADEM";
 }
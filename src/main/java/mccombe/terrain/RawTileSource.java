@@ -0,0 +1,29 @@
+package mccombe.terrain;
+
+import java.io.IOException;
+
+/**
+ * A RawTileSource maps tiles that have already been extracted to a
+ * RawTileStore.
+ *
+ * @author Mike
+ */
+public class RawTileSource implements TileSource {
+
+    public RawTileSource(RawTileStore rawStore) {
+        store = rawStore;
+    }
+
+    @Override
+    public DEMTile getTile(String name, TileFormat format) throws MissingDataFileException {
+        if (!store.contains(name)) {
+            return null;
+        }
+        try {
+            return store.map(name, format.recordlength(), format.littleendian());
+        } catch (IOException e) {
+            throw new MissingDataFileException("Unable to read file - " + e.toString());
+        }
+    }
+    private final RawTileStore store;
+}
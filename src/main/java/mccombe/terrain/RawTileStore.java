@@ -0,0 +1,100 @@
+package mccombe.terrain;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * RawTileStore keeps uncompressed copies of DEM tiles alongside the downloaded
+ * ZIP files. The payload of each ZIP is written out once, exactly as stored,
+ * and from then on the raw file is memory-mapped so that a tile costs page
+ * faults rather than decompression, even after the program is restarted.
+ *
+ * @author Mike
+ */
+public class RawTileStore {
+
+    /**
+     * @param path the directory in which to keep raw tiles. It is created if
+     * it does not already exist.
+     * @throws MissingDataFileException if the directory cannot be created
+     */
+    public RawTileStore(String path) throws MissingDataFileException {
+        directory = path;
+        File dir = new File(directory);
+        if (!dir.isDirectory()) {
+            boolean madeDirectory = dir.mkdirs();
+            if (!madeDirectory) {
+                throw new MissingDataFileException(String.format("Failed to create raw tile directory %s%n", directory));
+            }
+        }
+    }
+
+    public File rawFile(String name) {
+        return new File(directory + name + EXTN);
+    }
+
+    public boolean contains(String name) {
+        return rawFile(name).isFile();
+    }
+
+    /**
+     * Copy a tile's uncompressed payload into the store. The data is written
+     * to a temporary file first and renamed into place only when complete, so
+     * an interrupted extraction never leaves a truncated tile behind.
+     *
+     * @param name the tile name
+     * @param payload stream positioned at the start of the tile data
+     * @throws IOException if the file cannot be written
+     */
+    public void extract(String name, InputStream payload) throws IOException {
+        File outfile = rawFile(name);
+        File temp = File.createTempFile(name, TEMPEXTN, new File(directory));
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), BUFFERLENGTH);
+        try {
+            byte[] buffer = new byte[BUFFERLENGTH];
+            int count;
+            while ((count = payload.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(outfile)) {
+            temp.delete();
+            if (!outfile.isFile()) { //Another reader may have extracted the same tile first
+                throw new IOException(String.format("Unable to create raw tile %s", outfile.getPath()));
+            }
+        }
+    }
+
+    /**
+     * Map a raw tile into memory. A payload that is a TIFF file is opened as
+     * a TiffTile, which decodes its strips from the mapping as they are needed.
+     *
+     * @param name the tile name
+     * @param recordlength the number of samples in each row
+     * @param littleendian true if the tile's samples are little-endian
+     * @return the mapped tile
+     * @throws IOException if the file cannot be mapped
+     */
+    public DEMTile map(String name, int recordlength, boolean littleendian) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(rawFile(name), "r");
+        try {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (TiffTile.isTiff(buffer)) {
+                return TiffTile.open(name, buffer, recordlength);
+            }
+            buffer.order(littleendian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            return new MappedTile(name, buffer.asShortBuffer(), recordlength);
+        } finally {
+            file.close(); //The mapping remains valid after the channel is closed
+        }
+    }
+    private final String directory;
+    private static final String EXTN = ".raw";
+    private static final String TEMPEXTN = ".part";
+    private static final int BUFFERLENGTH = 1 << 16;
+}
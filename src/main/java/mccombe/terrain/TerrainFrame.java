@@ -641,8 +641,15 @@ import java.awt.event.WindowEvent;
 import java.beans.*;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.swing.Icon;
 import javax.swing.ImageIcon;
 import javax.swing.JDialog;
@@ -788,19 +795,19 @@ public class TerrainFrame extends javax.swing.JFrame {
         };
         try {
             if (useASTER.equalsIgnoreCase("aster")) {
-                reader = new ASTERReader(statusPanel);
+                replaceReader(new ASTERReader(statusPanel));
                 asterMenuItem.getModel().setSelected(true);
                 legacyMenuItem.setEnabled(true);
             } else if (useASTER.equalsIgnoreCase("both")) {
-                reader = new CompositeReader(statusPanel);
+                replaceReader(new CompositeReader(statusPanel));
                 bothMenuItem.getModel().setSelected(true);
                 legacyMenuItem.setEnabled(true);
             } else if (useASTER.equalsIgnoreCase("srtm")) {
-                reader = new SRTM2Reader(statusPanel); /////
+                replaceReader(new SRTM2Reader(statusPanel)); /////
                 srtmMenuItem.getModel().setSelected(true);
                 legacyMenuItem.setEnabled(false);
             }else if (useASTER.equalsIgnoreCase("nasadem")) {
-                reader = new NASADEMReader(statusPanel); /////
+                replaceReader(new NASADEMReader(statusPanel)); /////
                 nasaDemMenuItem.getModel().setSelected(true);
                 legacyMenuItem.setEnabled(false);
             }
@@ -870,6 +877,7 @@ public class TerrainFrame extends javax.swing.JFrame {
         createMenuItem = new javax.swing.JMenuItem();
         latLongMenuItem = new javax.swing.JMenuItem();
         saveAsMenuItem = new javax.swing.JMenuItem();
+        packMenuItem = new javax.swing.JMenuItem();
         exitMenuItem = new javax.swing.JMenuItem();
         optionsMenu = new javax.swing.JMenu();
         coordMenuItem = new javax.swing.JMenuItem();
@@ -950,6 +958,16 @@ public class TerrainFrame extends javax.swing.JFrame {
         });
         fileMenu.add(saveAsMenuItem);
 
+        packMenuItem.setFont(packMenuItem.getFont().deriveFont(packMenuItem.getFont().getSize()-1f));
+        packMenuItem.setText("Write Tile Pack ...");
+        packMenuItem.setEnabled(false);
+        packMenuItem.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                packMenuItemActionPerformed(evt);
+            }
+        });
+        fileMenu.add(packMenuItem);
+
         exitMenuItem.setFont(exitMenuItem.getFont().deriveFont(exitMenuItem.getFont().getSize()-1f));
         exitMenuItem.setText("Exit");
         exitMenuItem.addActionListener(new java.awt.event.ActionListener() {
@@ -1123,21 +1141,24 @@ public class TerrainFrame extends javax.swing.JFrame {
                 properties.set(TerrainProperties.REGION, region);
 
                 if (properties.get(TerrainProperties.ASTER).equalsIgnoreCase("aster")) {
-                    reader = new ASTERReader(statusPanel);
+                    replaceReader(new ASTERReader(statusPanel));
                     containsASTER = true;
                 } else if (properties.get(TerrainProperties.ASTER).equalsIgnoreCase("both")) {
-                    reader = new CompositeReader(statusPanel);
+                    replaceReader(new CompositeReader(statusPanel));
                 } else if (properties.get(TerrainProperties.ASTER).equalsIgnoreCase("srtm")) {
-                    reader = new SRTM2Reader(statusPanel); /////
+                    replaceReader(new SRTM2Reader(statusPanel)); /////
                     containsASTER = false;
                 } else if (properties.get(TerrainProperties.ASTER).equalsIgnoreCase("nasadem")) {
-                    reader = new NASADEMReader(statusPanel);
+                    replaceReader(new NASADEMReader(statusPanel));
                     containsASTER = false;
                 }
                 String leg = properties.get(TerrainProperties.LEGACYASTER);
                 boolean v1 = leg.equalsIgnoreCase("true");
                 reader.setLegacy(v1);
+                reader.setInterpolation(Interpolation.fromString(properties.get(TerrainProperties.INTERPOLATION)));
+                reader.setInpainting(properties.get(TerrainProperties.INPAINT).equalsIgnoreCase("true"));
                 CreateResults worker = new CreateResults();
+                activeRun = worker;
                 PropertyChangeListener[] listeners = statusPanel.getPropertyChangeListeners();
                 for (PropertyChangeListener ear : listeners) {
                     worker.addPropertyChangeListener(ear);
@@ -1201,6 +1222,25 @@ public class TerrainFrame extends javax.swing.JFrame {
         }
     }//GEN-LAST:event_saveAsMenuItemActionPerformed
 
+    private void packMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_packMenuItemActionPerformed
+        javax.swing.JFileChooser packChooser = new javax.swing.JFileChooser(paths.dataPath());
+        packChooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("Tile packs", TilePack.EXTN.substring(1)));
+        packChooser.setSelectedFile(new java.io.File(paths.dataPath() + String.format("%s_%d_%d_%d_%d%s", reader.inventoryName(), packArea[0], packArea[1], packArea[2], packArea[3], TilePack.EXTN)));
+        if (packChooser.showSaveDialog(mainFrame) == javax.swing.JFileChooser.APPROVE_OPTION) {
+            java.io.File pack = packChooser.getSelectedFile();
+            if (!pack.getName().endsWith(TilePack.EXTN)) {
+                pack = new java.io.File(pack.getPath() + TilePack.EXTN);
+            }
+            PackWriter worker = new PackWriter(pack, packArea.clone());
+            PropertyChangeListener[] listeners = statusPanel.getPropertyChangeListeners();
+            for (PropertyChangeListener ear : listeners) {
+                worker.addPropertyChangeListener(ear);
+            }
+            activePacks.add(worker);
+            worker.execute();
+        }
+    }//GEN-LAST:event_packMenuItemActionPerformed
+
     private void autoDownloadMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_autoDownloadMenuItemActionPerformed
         String newValue = "false";
         if (autoDownloadMenuItem.getState()) {
@@ -1362,8 +1402,245 @@ public class TerrainFrame extends javax.swing.JFrame {
         }
     }
 
+    /**
+     * A batch of grid rows passed from the decoder to the worker thread
+     */
+    private static class GridBatch {
+
+        GridBatch(int size) {
+            lats = new double[size];
+            lons = new double[size];
+        }
+        final double[] lats;
+        final double[] lons;
+        int top;
+        int bottom;
+        int count;
+        Exception failure;
+    }
+
+    /**
+     * Work done on one chunk of the points in a batch
+     */
+    private interface ChunkJob {
+
+        /**
+         * @param first the index of the chunk's first point in the batch
+         * @param count the number of points in the chunk
+         */
+        void run(int first, int count) throws Exception;
+    }
+
+    /**
+     * Start using a new DEM reader. The old one is closed, so that it stops
+     * holding tiles and files; if a grid is still being generated from it,
+     * it is closed when the grid is finished.
+     */
+    private void replaceReader(DEMReader fresh) {
+        DEMReader old = reader;
+        reader = fresh;
+        if (old == null) {
+            return;
+        }
+        for (PropertyChangeListener hear : old.getPropertyChangeListeners()) {
+            pcs.removePropertyChangeListener(hear);
+        }
+        for (PropertyChangeListener hear : fresh.getPropertyChangeListeners()) {
+            pcs.addPropertyChangeListener(hear);
+        }
+        boolean inUse = false;
+        if (activeRun != null && !activeRun.isDone() && activeRun.reader == old) {
+            activeRun.closeWhenDone = true;
+            inUse = true;
+        }
+        for (PackWriter packing : activePacks) {
+            if (packing.packReader == old) {
+                packing.closeWhenDone = true;
+                inUse = true;
+            }
+        }
+        if (!inUse) {
+            old.close();
+        }
+    }
+
+    /**
+     * Close a replaced reader when the last worker still using it finishes.
+     * Called on the event dispatch thread from the worker's done().
+     *
+     * @param used the reader the finishing worker was using
+     */
+    private void closeWhenUnused(DEMReader used) {
+        if (activeRun != null && activeRun.closeWhenDone && activeRun.reader == used) {
+            return;
+        }
+        for (PackWriter packing : activePacks) {
+            if (packing.closeWhenDone && packing.packReader == used) {
+                return;
+            }
+        }
+        used.close();
+    }
+
     private class CreateResults extends javax.swing.SwingWorker<InfoMessage, Object> {
 
+        /**
+         * Run a job on the grid pool over a batch of points, CHUNKSIZE points
+         * at a time, and wait for all of it to finish. Every point is worked
+         * out on its own and each chunk writes only its own points, so the
+         * results are the same whatever the number of threads.
+         *
+         * @param count the number of points in the batch
+         * @param job the work to do on each chunk
+         * @throws Exception the first exception thrown by any chunk
+         */
+        private void forEachChunk(int count, final ChunkJob job) throws Exception {
+//Failures are caught in the task, so the exception reported is the one thrown, not the pool's copy of it
+            final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for (int start = 0; start < count; start += CHUNKSIZE) {
+                final int first = start;
+                final int size = Math.min(CHUNKSIZE, count - start);
+                tasks.add(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        try {
+                            job.run(first, size);
+                        } catch (Exception e) {
+                            failure.compareAndSet(null, e);
+                        }
+                        return null;
+                    }
+                });
+            }
+            pool.invokeAll(tasks);
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+        }
+
+        /**
+         * @return the number of threads to generate the grid on: the
+         * gridThreads property, or one per processor if it is 0 or unset
+         */
+        private int gridThreads() {
+            int threads = 0;
+            String value = properties.get(TerrainProperties.GRIDTHREADS);
+            if (value != null) {
+                try {
+                    threads = Integer.parseInt(value.trim());
+                } catch (NumberFormatException e) {
+                    //Use one thread per processor
+                }
+            }
+            return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        }
+
+        /**
+         * Ask the reader to start loading every tile the grid touches. The
+         * edges of the grid are sampled, rather than just its corners, because
+         * a projected rectangle is not a rectangle in latitude and longitude.
+         */
+        private void prefetchTiles(GridInverse inverse, int xpoints, int ypoints) {
+            if (xpoints <= 0 || ypoints <= 0) {
+                return;
+            }
+            double minLat = 90.0;
+            double maxLat = -90.0;
+            double minLon = 180.0;
+            double maxLon = -180.0;
+            double east = e0 + (xpoints - 1) * spacing;
+            double north = n0 + (ypoints - 1) * spacing;
+            for (int k = 0; k <= EDGESAMPLES; k++) {
+                double x = e0 + (east - e0) * k / EDGESAMPLES;
+                double y = n0 + (north - n0) * k / EDGESAMPLES;
+                LatLong[] edge = {inverse.toLatLong(x, n0),
+                    inverse.toLatLong(x, north),
+                    inverse.toLatLong(e0, y),
+                    inverse.toLatLong(east, y)
+                };
+                for (LatLong latlon : edge) {
+                    minLat = Math.min(minLat, latlon.lat());
+                    maxLat = Math.max(maxLat, latlon.lat());
+                    minLon = Math.min(minLon, latlon.lon());
+                    maxLon = Math.max(maxLon, latlon.lon());
+                }
+            }
+            if (maxLon - minLon > 180.0) {
+                return; //Grid straddles the 180 degree meridian; load tiles as needed
+            }
+            area = new int[]{(int) Math.floor(minLat), (int) Math.floor(minLon), (int) Math.floor(maxLat), (int) Math.floor(maxLon)};
+            reader.prefetch(area[0], area[1], area[2], area[3]);
+        }
+
+        /**
+         * The first stage of grid generation. The decoder works out the
+         * latitude and longitude of each point in a batch of grid rows (on
+         * the grid pool) and has the reader load and decode the tile rows
+         * the batch will need,
+         * while the worker thread is still interpolating earlier batches. A
+         * batch with a count of zero marks the end of the grid, or a failure.
+         */
+        private class GridDecoder implements Runnable {
+
+            GridDecoder(GridInverse gridInverse, int columns, int rows, int rowsPerBatch, BlockingQueue<GridBatch> empty, BlockingQueue<GridBatch> full) {
+                inverse = gridInverse;
+                xpoints = columns;
+                ypoints = rows;
+                batchRows = rowsPerBatch;
+                free = empty;
+                ready = full;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    try {
+                        for (int top = ypoints - 1; top >= 0; top -= batchRows) {
+                            final GridBatch batch = free.take();
+                            batch.top = top;
+                            batch.bottom = Math.max(0, top - batchRows + 1);
+                            int count = (batch.top - batch.bottom + 1) * xpoints;
+                            forEachChunk(count, new ChunkJob() {
+                                @Override
+                                public void run(int first, int size) throws Exception {
+                                    for (int n = first; n < first + size; n++) {
+                                        int j = batch.top - n / xpoints;
+                                        int i = n % xpoints;
+                                        LatLong latlon = inverse.toLatLong(e0 + i * spacing, n0 + j * spacing);
+                                        batch.lats[n] = latlon.lat();
+                                        batch.lons[n] = latlon.lon();
+                                    }
+                                }
+                            });
+                            batch.count = count;
+                            try {
+                                reader.preload(batch.lats, batch.lons, count);
+                            } catch (MissingDataFileException e) {
+                                //Reported by the worker thread when it reaches the tile
+                            }
+                            ready.put(batch);
+                        }
+                        ready.put(new GridBatch(0));
+                    } catch (InterruptedException e) {
+                        //The worker thread has finished or failed
+                    } catch (Exception e) {
+                        GridBatch end = new GridBatch(0);
+                        end.failure = e;
+                        ready.put(end);
+                    }
+                } catch (InterruptedException e) {
+                    //The worker thread has finished or failed
+                }
+            }
+            private final GridInverse inverse;
+            private final int xpoints;
+            private final int ypoints;
+            private final int batchRows;
+            private final BlockingQueue<GridBatch> free;
+            private final BlockingQueue<GridBatch> ready;
+        }
+
         public InfoMessage doInBackground() {
             try {
                 currentEllipsoid = toolkit.getEllipsoid(properties.get(TerrainProperties.ELLIPSOID));
@@ -1400,31 +1677,56 @@ public class TerrainFrame extends javax.swing.JFrame {
                 resultsTable = new float[ypoints][xpoints];
                 long totpoints = xpoints * ypoints;
                 long donepoints = 0;
-                Projection point;
-                for (int j = ypoints - 1; j >= 0; j--) {
-                    for (int i = 0; i < xpoints; i++) {
-                        double x = e0 + i * spacing;
-                        double y = n0 + j * spacing;
-                        ENPair en = new ENPair(x, y);
-                        String type = startPoint.getName();
-                        if (startPoint instanceof UTM) {
-                            point = (Projection) toolkit.makeCoordinateSystem(type, en, zone, currentEllipsoid, currentDatum, northernHemisphere);
-                        } else {
-                            point = (Projection) toolkit.makeCoordinateSystem(type, en, currentEllipsoid, currentDatum);
+                reader.setSpacing(spacing);
+//The projection is looked up once for the whole grid, not for every point
+                GridInverse inverse = toolkit.makeGridInverse(currentCoordType, currentEllipsoid, currentDatum, zone, northernHemisphere);
+                prefetchTiles(inverse, xpoints, ypoints);
+                int batchRows = Math.max(1, BATCHSIZE / Math.max(1, xpoints));
+//Batches circulate between the two stages; there are only PIPELINEDEPTH + 1 of them, so the decoder cannot run too far ahead
+                BlockingQueue<GridBatch> free = new ArrayBlockingQueue<GridBatch>(PIPELINEDEPTH + 1);
+                BlockingQueue<GridBatch> ready = new ArrayBlockingQueue<GridBatch>(PIPELINEDEPTH + 1);
+                for (int k = 0; k <= PIPELINEDEPTH; k++) {
+                    free.add(new GridBatch(batchRows * xpoints));
+                }
+                pool = new ForkJoinPool(gridThreads());
+                Thread decoder = new Thread(new GridDecoder(inverse, xpoints, ypoints, batchRows, free, ready), "DEM grid decode");
+                decoder.setDaemon(true);
+                decoder.start();
+                final float[] heights = new float[batchRows * xpoints];
+                try {
+                    while (true) {
+                        final GridBatch batch = ready.take();
+                        if (batch.failure != null) {
+                            throw batch.failure;
+                        }
+                        if (batch.count == 0) {
+                            break;
+                        }
+                        forEachChunk(batch.count, new ChunkJob() {
+                            @Override
+                            public void run(int first, int size) throws MissingDataFileException {
+                                reader.getHeights(batch.lats, batch.lons, heights, first, size);
+                            }
+                        });
+                        int count = 0;
+                        for (int j = batch.top; j >= batch.bottom; j--) {
+                            System.arraycopy(heights, count, resultsTable[j], 0, xpoints);
+                            count += xpoints;
                         }
-                        Position q = point.getPosition();
-                        Spherical t = new Spherical(q, Ellipsoid.GRS80, Datum.WGS_1984);
-                        LatLong latlon = t.toLatLong();
-                        resultsTable[j][i] = (float) reader.getHeight(latlon);
-                        donepoints++;
+                        free.put(batch);
+                        donepoints += count;
                         int percentdone = (int) ((donepoints * 100) / totpoints);
                         setProgress(percentdone);
                     }
+                } finally {
+                    decoder.interrupt();
+                    pool.shutdown();
                 }
                 double hitrate = (double) reader.hits() / (double) reader.tries();
                 String[] message = {String.format("Calculated %d points", reader.resultcount()),
                     String.format("Encountered %d missng data points", reader.missing()),
-                    String.format("Cache hit-rate = %6.2f%%", hitrate * 100.0)
+                    String.format("Cache hit-rate = %6.2f%%", hitrate * 100.0),
+                    String.format("Tiles loaded = %d, evicted = %d, %d MB resident", reader.misses(), reader.evictions(), reader.residentBytes() / (1024 * 1024))
                 };
                 return new InfoMessage("Calculation complete", message, Severity.SUCCESS);
             } catch (Exception ex) {
@@ -1444,6 +1746,8 @@ public class TerrainFrame extends javax.swing.JFrame {
                 usedType = currentCoordType;
 
                 saveAsMenuItem.setEnabled(unsaved);
+                packArea = unsaved ? area : null;
+                packMenuItem.setEnabled(packArea != null);
                 if (unsaved) {
                     mosaic.setDataTable(resultsTable);
                 }
@@ -1451,6 +1755,13 @@ public class TerrainFrame extends javax.swing.JFrame {
                 message.display(mainFrame);
             } catch (InterruptedException ex) {
             } catch (ExecutionException ex) {
+            } finally {
+                if (closeWhenDone) {
+                    closeWhenDone = false;
+                    closeWhenUnused(reader);
+                } else {
+                    reader.releaseTiles(); //The next run may be anywhere; don't hold this one's tiles
+                }
             }
         }
 
@@ -1459,6 +1770,62 @@ public class TerrainFrame extends javax.swing.JFrame {
             lastMessage = msg;
         }
         private String lastMessage = "";
+        private ForkJoinPool pool;
+        private final DEMReader reader = TerrainFrame.this.reader; //The reader this grid is generated from, even if the frame's is replaced
+        private int[] area = null; //South, west, north and east tiles of the grid, or null if it straddles 180 degrees
+        private boolean closeWhenDone = false; //Set on the event dispatch thread when the frame replaces the reader
+    }
+
+    /**
+     * Writes the dataset's tiles covering the last grid to a tile pack
+     */
+    private class PackWriter extends javax.swing.SwingWorker<InfoMessage, Object> {
+
+        PackWriter(java.io.File file, int[] area) {
+            pack = file;
+            south = area[0];
+            west = area[1];
+            north = area[2];
+            east = area[3];
+        }
+
+        public InfoMessage doInBackground() {
+            try {
+                int count = packReader.writePack(pack, south, west, north, east);
+                String[] message = {String.format("Wrote %d tiles to %s", count, pack.getPath()),
+                    "Tile packs in the data directory are used in preference to the dataset's own files"
+                };
+                return new InfoMessage("Tile pack complete", message, Severity.SUCCESS);
+            } catch (MissingDataFileException ex) {
+                String[] msg = {"Unable to write tile pack", ex.getMessage()};
+                return new InfoMessage("Failed", msg, Severity.ERROR);
+            }
+        }
+
+        @Override
+        protected void done() {
+            try {
+                get().display(mainFrame);
+            } catch (InterruptedException ex) {
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause() == null ? ex : ex.getCause();
+                String[] msg = {"Unable to write tile pack", cause.getClass().getName(), String.valueOf(cause.getMessage())};
+                new InfoMessage("Failed", msg, Severity.ERROR).display(mainFrame);
+            } finally {
+                activePacks.remove(this);
+                if (closeWhenDone) {
+                    closeWhenDone = false;
+                    closeWhenUnused(packReader);
+                }
+            }
+        }
+        private final java.io.File pack;
+        private final int south;
+        private final int west;
+        private final int north;
+        private final int east;
+        private final DEMReader packReader = reader; //The reader the pack is written from, even if the frame's is replaced
+        private boolean closeWhenDone = false; //Set on the event dispatch thread when the frame replaces the reader
     }
 
     private class Saver extends javax.swing.SwingWorker<InfoMessage, Object> {
@@ -1749,6 +2116,7 @@ public class TerrainFrame extends javax.swing.JFrame {
     private javax.swing.JMenu optionsMenu;
     private javax.swing.JProgressBar progressBar;
     private javax.swing.JMenuItem regionMenuItem;
+    private javax.swing.JMenuItem packMenuItem;
     private javax.swing.JMenuItem saveAsMenuItem;
     private javax.swing.JRadioButtonMenuItem srtmMenuItem;
     private javax.swing.JLabel statusAnimationLabel;
@@ -1769,6 +2137,9 @@ public class TerrainFrame extends javax.swing.JFrame {
     private JDialog aboutBox;
 ///    private SRTM2Reader reader = null; /////
     private DEMReader reader = null; /////
+    private CreateResults activeRun = null;
+    private final List<PackWriter> activePacks = new ArrayList<PackWriter>(); //Tile packs being written
+    private int[] packArea = null; //The tiles covered by the last grid, for packMenuItem
     private float[][] resultsTable = null;
     private double e0, n0;
     private double wid = Double.parseDouble(properties.get(TerrainProperties.EW));
@@ -1814,6 +2185,10 @@ public class TerrainFrame extends javax.swing.JFrame {
     private String useASTER = properties.get(TerrainProperties.ASTER);
     private String coordSystemString = properties.get(TerrainProperties.THERIONCS);
     private boolean containsASTER = false;
+    private static final int EDGESAMPLES = 32; //Points sampled along each edge of the grid when prefetching tiles
+    private static final int BATCHSIZE = 65536; //Number of points passed to the DEMReader in each batch
+    private static final int PIPELINEDEPTH = 2; //Batches the decoder may prepare ahead of interpolation
+    private static final int CHUNKSIZE = 2048; //Points in each task given to the grid pool
     /*
      * Version information
      */
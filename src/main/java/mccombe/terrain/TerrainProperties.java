@@ -35,5 +35,11 @@ public class TerrainProperties {
     public static final TerrainProperties ASTER = new TerrainProperties("useASTER");
     public static final TerrainProperties THERIONCS = new TerrainProperties("therionCoordinateSet");
     public static final TerrainProperties LEGACYASTER = new TerrainProperties("legacyASTER");
+    public static final TerrainProperties EXTRACT = new TerrainProperties("extractTiles");
+    public static final TerrainProperties CACHESIZE = new TerrainProperties("tileCacheMB");
+    public static final TerrainProperties INTERPOLATION = new TerrainProperties("interpolation");
+    public static final TerrainProperties OFFHEAP = new TerrainProperties("offHeapTiles");
+    public static final TerrainProperties INPAINT = new TerrainProperties("inpaintVoids");
+    public static final TerrainProperties GRIDTHREADS = new TerrainProperties("gridThreads");
     private String stringvalue;
 }
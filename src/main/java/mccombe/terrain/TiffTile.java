@@ -0,0 +1,522 @@
+package mccombe.terrain;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A TiffTile reads heights from a single-band 16-bit TIFF (GeoTIFF) file, as
+ * supplied for ASTER GDEM tiles. Only the image file directory is parsed when
+ * the tile is opened; each strip (or row of TIFF tiles) is located through the
+ * offset table and decoded the first time one of its rows is needed, so
+ * reading three rows of a 3601 x 3601 tile decodes only the strips that hold
+ * them. Uncompressed, Deflate, LZW and PackBits data are supported, with or
+ * without horizontal differencing.
+ * <p>
+ * The file itself is held in a ByteBuffer, which may wrap bytes read from a
+ * ZIP entry or a memory-mapped copy in the RawTileStore.
+ *
+ * @author Mike
+ */
+public class TiffTile extends DEMTile {
+
+    private TiffTile(String name, ByteBuffer source, int[] tags, long[] offsets, long[] counts, int rowcount) {
+        super(name, rowcount, tags[WIDTH]);
+        data = source;
+        width = tags[WIDTH];
+        height = tags[HEIGHT];
+        compression = tags[COMPRESSION];
+        predictor = tags[PREDICTOR];
+        boolean tiled = tags[TILEWIDTH] > 0;
+        blockWidth = tiled ? tags[TILEWIDTH] : width;
+        blockRows = tiled ? tags[TILELENGTH] : Math.min(tags[ROWSPERSTRIP], height);
+        across = (width + blockWidth - 1) / blockWidth;
+        blockOffsets = offsets;
+        blockCounts = counts;
+        bands = new AtomicReferenceArray<short[]>((height + blockRows - 1) / blockRows);
+    }
+
+    /**
+     * Test whether a file starts with a TIFF header
+     *
+     * @param header at least the first four bytes of the file
+     * @param length the number of bytes available
+     * @return true if the bytes are a little- or big-endian TIFF signature
+     */
+    public static boolean isTiff(byte[] header, int length) {
+        if (length < 4) {
+            return false;
+        }
+        return (header[0] == 'I' && header[1] == 'I' && header[2] == 42 && header[3] == 0)
+                || (header[0] == 'M' && header[1] == 'M' && header[2] == 0 && header[3] == 42);
+    }
+
+    /**
+     * Test whether a buffer starts with a TIFF header
+     *
+     * @param buffer the file contents
+     * @return true if the buffer holds a TIFF file
+     */
+    public static boolean isTiff(ByteBuffer buffer) {
+        byte[] header = new byte[4];
+        int length = Math.min(header.length, buffer.capacity());
+        for (int i = 0; i < length; i++) {
+            header[i] = buffer.get(i);
+        }
+        return isTiff(header, length);
+    }
+
+    /**
+     * Read a complete TIFF file from a stream, such as a ZIP entry, and open it
+     *
+     * @param name the tile name
+     * @param in stream positioned at the start of the TIFF file
+     * @param recordlength the number of samples expected in each row
+     * @return the tile
+     * @throws IOException if the file cannot be read or is not a TIFF this class can decode
+     */
+    public static TiffTile read(String name, InputStream in, int recordlength) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(recordlength * recordlength * 2 + 4096);
+        byte[] buffer = new byte[1 << 16];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return open(name, ByteBuffer.wrap(out.toByteArray()), recordlength);
+    }
+
+    /**
+     * Open a TIFF file held in a buffer. The image file directory is parsed
+     * here; pixel data is not decoded until it is needed.
+     *
+     * @param name the tile name
+     * @param buffer the complete TIFF file
+     * @param recordlength the number of samples expected in each row
+     * @return the tile
+     * @throws IOException if the buffer is not a TIFF this class can decode
+     */
+    public static TiffTile open(String name, ByteBuffer buffer, int recordlength) throws IOException {
+        if (!isTiff(buffer)) {
+            throw new IOException(String.format("%s is not a TIFF file", name));
+        }
+        ByteBuffer source = buffer.duplicate();
+        source.order(buffer.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        int[] tags = {0, 0, 1, 1, 1, 1, Integer.MAX_VALUE, 1, 0, 0};
+        long[] offsets = null;
+        long[] counts = null;
+        long ifd = source.getInt(4) & 0xFFFFFFFFL;
+        if (ifd + 2 > source.capacity()) {
+            throw new IOException(String.format("Truncated TIFF file %s", name));
+        }
+        int entries = source.getShort((int) ifd) & 0xFFFF;
+        for (int e = 0; e < entries; e++) {
+            int pos = (int) ifd + 2 + 12 * e;
+            if (pos + 12 > source.capacity()) {
+                throw new IOException(String.format("Truncated TIFF file %s", name));
+            }
+            int tag = source.getShort(pos) & 0xFFFF;
+            switch (tag) {
+                case TAG_WIDTH:
+                    tags[WIDTH] = (int) value(source, pos, 0);
+                    break;
+                case TAG_HEIGHT:
+                    tags[HEIGHT] = (int) value(source, pos, 0);
+                    break;
+                case TAG_BITS:
+                    tags[BITS] = (int) value(source, pos, 0);
+                    break;
+                case TAG_COMPRESSION:
+                    tags[COMPRESSION] = (int) value(source, pos, 0);
+                    break;
+                case TAG_SAMPLES:
+                    tags[SAMPLES] = (int) value(source, pos, 0);
+                    break;
+                case TAG_ROWSPERSTRIP:
+                    tags[ROWSPERSTRIP] = (int) Math.min(Integer.MAX_VALUE, value(source, pos, 0));
+                    break;
+                case TAG_PREDICTOR:
+                    tags[PREDICTOR] = (int) value(source, pos, 0);
+                    break;
+                case TAG_TILEWIDTH:
+                    tags[TILEWIDTH] = (int) value(source, pos, 0);
+                    break;
+                case TAG_TILELENGTH:
+                    tags[TILELENGTH] = (int) value(source, pos, 0);
+                    break;
+                case TAG_SAMPLEFORMAT:
+                    tags[SAMPLEFORMAT] = (int) value(source, pos, 0);
+                    break;
+                case TAG_STRIPOFFSETS:
+                case TAG_TILEOFFSETS:
+                    offsets = values(source, pos);
+                    break;
+                case TAG_STRIPBYTECOUNTS:
+                case TAG_TILEBYTECOUNTS:
+                    counts = values(source, pos);
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (tags[BITS] != 16 || tags[SAMPLES] != 1 || tags[SAMPLEFORMAT] > 2) {
+            throw new IOException(String.format("%s is not a single-band 16-bit integer TIFF", name));
+        }
+        if (tags[WIDTH] != recordlength || tags[HEIGHT] <= 0) {
+            throw new IOException(String.format("%s is %d x %d; expected %d samples per row", name, tags[WIDTH], tags[HEIGHT], recordlength));
+        }
+        int c = tags[COMPRESSION];
+        if (c != NONE && c != LZW && c != DEFLATE && c != ADOBE_DEFLATE && c != PACKBITS) {
+            throw new IOException(String.format("%s uses unsupported TIFF compression %d", name, c));
+        }
+        if (tags[PREDICTOR] != 1 && tags[PREDICTOR] != 2) {
+            throw new IOException(String.format("%s uses unsupported TIFF predictor %d", name, tags[PREDICTOR]));
+        }
+        boolean tiled = tags[TILEWIDTH] > 0;
+        if (tiled && tags[TILELENGTH] <= 0) {
+            throw new IOException(String.format("%s has no TIFF tile length", name));
+        }
+        int blockWidth = tiled ? tags[TILEWIDTH] : tags[WIDTH];
+        int blockRows = tiled ? tags[TILELENGTH] : Math.min(tags[ROWSPERSTRIP], tags[HEIGHT]);
+        int across = (tags[WIDTH] + blockWidth - 1) / blockWidth;
+        int down = (tags[HEIGHT] + blockRows - 1) / blockRows;
+        if (offsets == null || offsets.length < across * down) {
+            throw new IOException(String.format("%s has an incomplete TIFF offset table", name));
+        }
+        if (counts == null) {
+            if (c != NONE || offsets.length != 1) {
+                throw new IOException(String.format("%s has no TIFF byte counts", name));
+            }
+            counts = new long[]{2L * tags[WIDTH] * tags[HEIGHT]};
+        }
+//Rows are available down to the first strip that runs past the end of the file
+        int band = 0;
+        while (band < down && blockInFile(source, offsets, counts, band * across, across)) {
+            band++;
+        }
+        int rowcount = Math.min(tags[HEIGHT], band * blockRows);
+        return new TiffTile(name, source, tags, offsets, counts, Math.min(rowcount, recordlength));
+    }
+
+    /**
+     * Get a single height value, decoding the strip that holds it if this is
+     * the first request for any row in that strip
+     *
+     * @throws IllegalStateException if the strip's compressed data is corrupt
+     */
+    @Override
+    public int getValue(int row, int col) {
+        int b = row / blockRows;
+        short[] band = bands.get(b);
+        if (band == null) {
+            band = decodeBand(b);
+        }
+        return band[(row - b * blockRows) * width + col];
+    }
+
+    /**
+     * Decode the strips, or rows of TIFF tiles, holding a range of rows
+     *
+     * @throws IllegalStateException if a strip's compressed data is corrupt
+     */
+    @Override
+    public void decodeRows(int first, int last) {
+        for (int b = Math.max(0, first) / blockRows; b <= Math.min(last, height - 1) / blockRows; b++) {
+            if (bands.get(b) == null) {
+                decodeBand(b);
+            }
+        }
+    }
+
+    @Override
+    public boolean isDecoded() {
+        return false;
+    }
+
+    /**
+     * @return the number of strips, or rows of TIFF tiles, decoded so far
+     */
+    public int decodedBands() {
+        int count = 0;
+        for (int b = 0; b < bands.length(); b++) {
+            if (bands.get(b) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long bytes() {
+        return data.capacity() + 2L * width * height;
+    }
+
+    private short[] decodeBand(int b) {
+        synchronized (bands) {
+            short[] band = bands.get(b);
+            if (band != null) {
+                return band;
+            }
+            int rows = Math.min(blockRows, height - b * blockRows);
+            band = new short[rows * width];
+            short[] block = new short[blockRows * blockWidth];
+            byte[] raw = new byte[block.length * 2];
+            for (int c = 0; c < across; c++) {
+                int index = b * across + c;
+                try {
+                    decodeBlock((int) blockOffsets[index], (int) blockCounts[index], raw, block);
+                } catch (DataFormatException e) {
+                    throw new IllegalStateException(String.format("Corrupt TIFF data in tile %s - %s", getName(), e.toString()));
+                }
+                int x0 = c * blockWidth;
+                int cols = Math.min(blockWidth, width - x0);
+                for (int r = 0; r < rows; r++) {
+                    System.arraycopy(block, r * blockWidth, band, r * width + x0, cols);
+                }
+            }
+            bands.set(b, band);
+            return band;
+        }
+    }
+
+    /**
+     * Decompress one strip or TIFF tile into samples, blockWidth to a row
+     */
+    private void decodeBlock(int offset, int count, byte[] raw, short[] block) throws DataFormatException {
+        java.util.Arrays.fill(raw, (byte) 0);
+        byte[] packed = new byte[count];
+        ByteBuffer in = data.duplicate();
+        ((Buffer) in).position(offset);
+        in.get(packed);
+        switch (compression) {
+            case NONE:
+                System.arraycopy(packed, 0, raw, 0, Math.min(count, raw.length));
+                break;
+            case LZW:
+                lzw(packed, raw);
+                break;
+            case DEFLATE:
+            case ADOBE_DEFLATE:
+                inflate(packed, raw);
+                break;
+            case PACKBITS:
+                packbits(packed, raw);
+                break;
+            default:
+                throw new DataFormatException("Unsupported compression " + compression);
+        }
+        boolean little = data.order() == ByteOrder.LITTLE_ENDIAN;
+        for (int i = 0; i < block.length; i++) {
+            int lo = raw[2 * i + (little ? 0 : 1)] & 0xFF;
+            int hi = raw[2 * i + (little ? 1 : 0)];
+            block[i] = (short) ((hi << 8) | lo);
+        }
+        if (predictor == 2) {
+            for (int r = 0; r < blockRows; r++) {
+                int start = r * blockWidth;
+                for (int i = start + 1; i < start + blockWidth; i++) {
+                    block[i] += block[i - 1];
+                }
+            }
+        }
+    }
+
+    private static void inflate(byte[] in, byte[] out) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(in);
+            int done = 0;
+            while (done < out.length && !inflater.finished()) {
+                int count = inflater.inflate(out, done, out.length - done);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break; //Short strip - remaining samples are left as zero
+                }
+                done += count;
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * TIFF variant of LZW: codes are written most significant bit first and
+     * the code width grows one code early. Each table entry is a run of bytes
+     * already written to the output, so the table holds only a start and a
+     * length for each code.
+     */
+    private static void lzw(byte[] in, byte[] out) throws DataFormatException {
+        int[] start = new int[4096];
+        int[] length = new int[4096];
+        int ip = 0;
+        int op = 0;
+        int bits = 0;
+        int bitcount = 0;
+        int codewidth = 9;
+        int next = 258;
+        int prevStart = -1;
+        int prevLength = 0;
+        while (op < out.length) {
+            while (bitcount < codewidth && ip < in.length) {
+                bits = (bits << 8) | (in[ip++] & 0xFF);
+                bitcount += 8;
+            }
+            if (bitcount < codewidth) {
+                break;
+            }
+            int code = (bits >>> (bitcount - codewidth)) & ((1 << codewidth) - 1);
+            bitcount -= codewidth;
+            if (code == LZW_CLEAR) {
+                codewidth = 9;
+                next = 258;
+                prevStart = -1;
+                continue;
+            }
+            if (code == LZW_EOI) {
+                break;
+            }
+            int pos = op;
+            if (code < 256) {
+                out[op++] = (byte) code;
+            } else if (code < next && prevStart >= 0) {
+                int n = Math.min(length[code], out.length - op);
+                for (int i = 0; i < n; i++) {
+                    out[op++] = out[start[code] + i];
+                }
+            } else if (code == next && prevStart >= 0) {
+                int n = Math.min(prevLength, out.length - op);
+                for (int i = 0; i < n; i++) {
+                    out[op++] = out[prevStart + i];
+                }
+                if (op < out.length) {
+                    out[op++] = out[prevStart];
+                }
+            } else {
+                throw new DataFormatException("Invalid LZW code " + code);
+            }
+            if (prevStart >= 0 && next < 4096) {
+                start[next] = prevStart;
+                length[next] = prevLength + 1;
+                next++;
+            }
+            prevStart = pos;
+            prevLength = op - pos;
+            if (next + 1 >= (1 << codewidth) && codewidth < 12) {
+                codewidth++;
+            }
+        }
+    }
+
+    private static void packbits(byte[] in, byte[] out) {
+        int ip = 0;
+        int op = 0;
+        while (ip < in.length && op < out.length) {
+            int n = in[ip++];
+            if (n >= 0) {
+                int count = Math.min(Math.min(n + 1, in.length - ip), out.length - op);
+                System.arraycopy(in, ip, out, op, count);
+                ip += n + 1;
+                op += count;
+            } else if (n != -128 && ip < in.length) {
+                byte value = in[ip++];
+                int count = Math.min(1 - n, out.length - op);
+                for (int i = 0; i < count; i++) {
+                    out[op++] = value;
+                }
+            }
+        }
+    }
+
+    private static boolean blockInFile(ByteBuffer source, long[] offsets, long[] counts, int first, int count) {
+        for (int i = first; i < first + count; i++) {
+            if (i >= counts.length || offsets[i] + counts[i] > source.capacity()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get one value of a SHORT or LONG directory entry
+     */
+    private static long value(ByteBuffer source, int entry, int index) throws IOException {
+        int type = source.getShort(entry + 2) & 0xFFFF;
+        long count = source.getInt(entry + 4) & 0xFFFFFFFFL;
+        int size = type == TYPE_SHORT ? 2 : 4;
+        if (type != TYPE_SHORT && type != TYPE_LONG) {
+            throw new IOException("Unexpected TIFF field type " + type);
+        }
+        long pos = count * size <= 4 ? entry + 8 : source.getInt(entry + 8) & 0xFFFFFFFFL;
+        pos += (long) index * size;
+        if (pos + size > source.capacity()) {
+            throw new IOException("Truncated TIFF file");
+        }
+        return type == TYPE_SHORT ? source.getShort((int) pos) & 0xFFFF : source.getInt((int) pos) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Get every value of a SHORT or LONG directory entry
+     */
+    private static long[] values(ByteBuffer source, int entry) throws IOException {
+        long count = source.getInt(entry + 4) & 0xFFFFFFFFL;
+        if (count > source.capacity()) {
+            throw new IOException("Corrupt TIFF offset table");
+        }
+        long[] result = new long[(int) count];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = value(source, entry, i);
+        }
+        return result;
+    }
+    private final ByteBuffer data;
+    private final int width;
+    private final int height;
+    private final int compression;
+    private final int predictor;
+    private final int blockWidth;
+    private final int blockRows;
+    private final int across;
+    private final long[] blockOffsets;
+    private final long[] blockCounts;
+    private final AtomicReferenceArray<short[]> bands;
+    //Positions in the array of tag values collected from the image file directory
+    private static final int WIDTH = 0;
+    private static final int HEIGHT = 1;
+    private static final int BITS = 2;
+    private static final int COMPRESSION = 3;
+    private static final int SAMPLES = 4;
+    private static final int PREDICTOR = 5;
+    private static final int ROWSPERSTRIP = 6;
+    private static final int SAMPLEFORMAT = 7;
+    private static final int TILEWIDTH = 8;
+    private static final int TILELENGTH = 9;
+    //TIFF tags
+    private static final int TAG_WIDTH = 256;
+    private static final int TAG_HEIGHT = 257;
+    private static final int TAG_BITS = 258;
+    private static final int TAG_COMPRESSION = 259;
+    private static final int TAG_STRIPOFFSETS = 273;
+    private static final int TAG_SAMPLES = 277;
+    private static final int TAG_ROWSPERSTRIP = 278;
+    private static final int TAG_STRIPBYTECOUNTS = 279;
+    private static final int TAG_PREDICTOR = 317;
+    private static final int TAG_TILEWIDTH = 322;
+    private static final int TAG_TILELENGTH = 323;
+    private static final int TAG_TILEOFFSETS = 324;
+    private static final int TAG_TILEBYTECOUNTS = 325;
+    private static final int TAG_SAMPLEFORMAT = 339;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    //Compression schemes
+    private static final int NONE = 1;
+    private static final int LZW = 5;
+    private static final int ADOBE_DEFLATE = 8;
+    private static final int PACKBITS = 32773;
+    private static final int DEFLATE = 32946;
+    private static final int LZW_CLEAR = 256;
+    private static final int LZW_EOI = 257;
+}
@@ -0,0 +1,30 @@
+package mccombe.terrain;
+
+/**
+ * Thrown by a TileSource which knows for certain that a dataset has no tile
+ * for a location, as opposed to being unable to get the tile at the moment.
+ * SRTM, for example, has no tiles for the open ocean.
+ *
+ * @author Mike
+ */
+public class TileAbsentException extends MissingDataFileException {
+
+    /**
+     * @param msg the message
+     * @param server the address of the directory which reported the tile
+     * missing
+     */
+    public TileAbsentException(String msg, String server) {
+        super(msg);
+        source = server;
+    }
+
+    /**
+     * @return the address of the directory which reported the tile missing
+     */
+    public String source() {
+        return source;
+    }
+    private final String source;
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,125 @@
+package mccombe.terrain;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * TileArena keeps decoded tiles in direct (off-heap) memory, up to a fixed
+ * number of bytes. Memory is allocated in slabs, one per tile, and a slab
+ * released by an evicted tile is re-used for the next tile of the same size
+ * rather than being left for the garbage collector.
+ * <p>
+ * A released tile may still be in use by a thread which fetched it just
+ * before it was evicted, so its slab is only re-used once the Pins callback
+ * reports that no thread holds the tile. If no slab can be found within the
+ * arena's capacity, the tile stays on the Java heap.
+ *
+ * @author Mike
+ */
+public class TileArena {
+
+    /**
+     * Reports whether any thread may still be reading a tile
+     */
+    public interface Pins {
+
+        boolean pinned(DEMTile tile);
+    }
+
+    /**
+     * @param budget the maximum number of bytes of direct memory to allocate
+     * @param pins tells the arena which released tiles are still in use
+     */
+    public TileArena(long budget, Pins pins) {
+        capacity = budget;
+        pinCheck = pins;
+    }
+
+    /**
+     * Copy a decoded tile into the arena
+     *
+     * @param tile the tile
+     * @return an off-heap copy of the tile, or the tile itself if the arena is full
+     */
+    public DEMTile copy(DEMTile tile) {
+        int rows = tile.rows();
+        int width = tile.width();
+        ByteBuffer slab = take(2 * rows * width);
+        if (slab == null) {
+            return tile;
+        }
+        ShortBuffer data = slab.asShortBuffer();
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < width; col++) {
+                data.put(row * width + col, (short) tile.getValue(row, col));
+            }
+        }
+        return new DirectTile(tile.getName(), slab, this, rows, width);
+    }
+
+    /**
+     * @return the number of bytes of direct memory allocated
+     */
+    public synchronized long allocatedBytes() {
+        return allocated;
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * Give back to the system the slabs of released tiles which no thread is
+     * still reading
+     */
+    public synchronized void trim() {
+        Iterator<DirectTile> it = released.iterator();
+        while (it.hasNext()) {
+            DirectTile tile = it.next();
+            if (!pinCheck.pinned(tile)) {
+                it.remove();
+                allocated -= tile.slab.capacity();
+            }
+        }
+    }
+
+    synchronized void release(DirectTile tile) {
+        released.add(tile);
+    }
+
+    private synchronized ByteBuffer take(int bytes) {
+        if (bytes == 0) {
+            return null;
+        }
+        Iterator<DirectTile> it = released.iterator();
+        while (it.hasNext()) {
+            DirectTile tile = it.next();
+            if (tile.slab.capacity() == bytes && !pinCheck.pinned(tile)) {
+                it.remove();
+                return tile.slab;
+            }
+        }
+//Give up unused slabs of other sizes until the new one fits
+        it = released.iterator();
+        while (allocated + bytes > capacity && it.hasNext()) {
+            DirectTile tile = it.next();
+            if (!pinCheck.pinned(tile)) {
+                it.remove();
+                allocated -= tile.slab.capacity();
+            }
+        }
+        if (allocated + bytes > capacity) {
+            return null;
+        }
+        allocated += bytes;
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+    private final long capacity;
+    private final Pins pinCheck;
+    private final List<DirectTile> released = new ArrayList<DirectTile>();
+    private long allocated = 0;
+}
@@ -0,0 +1,212 @@
+package mccombe.terrain;
+
+/**
+ * TileCache holds DEM tiles up to a fixed number of bytes. Tiles are keyed by
+ * a packed long (see DEMReader.tileKey()) so that a lookup allocates nothing,
+ * and are kept on a least-recently-used list so that eviction simply removes
+ * the eldest entries until the cache is back within its budget. The most
+ * recently added tile is always retained, even if it is larger than the budget
+ * on its own.
+ *
+ * @author Mike
+ */
+public class TileCache {
+
+    /**
+     * @param budget the maximum number of bytes of tile data to keep resident
+     */
+    public TileCache(long budget) {
+        capacity = budget;
+        clear();
+    }
+
+    /**
+     * Look up a tile, marking it as the most recently used
+     *
+     * @param key the packed tile key
+     * @return the tile, or null if it is not resident
+     */
+    public synchronized DEMTile get(long key) {
+        Node node = find(key);
+        if (node == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        unlink(node);
+        linkFirst(node);
+        return node.tile;
+    }
+
+    /**
+     * Look up a tile without counting a hit or miss or changing its place in
+     * the least-recently-used order
+     *
+     * @param key the packed tile key
+     * @return the tile, or null if it is not resident
+     */
+    public synchronized DEMTile peek(long key) {
+        Node node = find(key);
+        return node == null ? null : node.tile;
+    }
+
+    /**
+     * Add a tile, evicting the least recently used tiles as necessary
+     *
+     * @param key the packed tile key
+     * @param tile the tile to add
+     */
+    public synchronized void put(long key, DEMTile tile) {
+        Node node = find(key);
+        if (node != null) {
+            resident -= node.tile.bytes();
+            if (node.tile != tile) {
+                node.tile.release();
+            }
+            node.tile = tile;
+            unlink(node);
+        } else {
+            node = new Node(key, tile);
+            int slot = slot(key, table.length);
+            node.next = table[slot];
+            table[slot] = node;
+            size++;
+            if (size > table.length * 3 / 4) {
+                resize();
+            }
+        }
+        linkFirst(node);
+        resident += tile.bytes();
+        while (resident > capacity && size > 1) {
+            Node victim = head.before;
+            remove(victim);
+            resident -= victim.tile.bytes();
+            victim.tile.release();
+            evictions++;
+        }
+    }
+
+    /**
+     * Remove every tile, releasing each one
+     */
+    public synchronized void clear() {
+        if (head != null) {
+            for (Node node = head.after; node != head; node = node.after) {
+                node.tile.release();
+            }
+        }
+        table = new Node[16];
+        head = new Node(0, null);
+        head.before = head;
+        head.after = head;
+        size = 0;
+        resident = 0;
+    }
+
+    public synchronized void resetCounts() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of bytes of tile data currently held
+     */
+    public synchronized long residentBytes() {
+        return resident;
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    private Node find(long key) {
+        Node node = table[slot(key, table.length)];
+        while (node != null && node.key != key) {
+            node = node.next;
+        }
+        return node;
+    }
+
+    private void remove(Node node) {
+        unlink(node);
+        int slot = slot(node.key, table.length);
+        Node prev = null;
+        Node test = table[slot];
+        while (test != node) {
+            prev = test;
+            test = test.next;
+        }
+        if (prev == null) {
+            table[slot] = node.next;
+        } else {
+            prev.next = node.next;
+        }
+        size--;
+    }
+
+    private void resize() {
+        Node[] bigger = new Node[table.length * 2];
+        for (Node bucket : table) {
+            Node node = bucket;
+            while (node != null) {
+                Node next = node.next;
+                int slot = slot(node.key, bigger.length);
+                node.next = bigger[slot];
+                bigger[slot] = node;
+                node = next;
+            }
+        }
+        table = bigger;
+    }
+
+    private void linkFirst(Node node) {
+        node.after = head.after;
+        node.before = head;
+        head.after.before = node;
+        head.after = node;
+    }
+
+    private static void unlink(Node node) {
+        node.before.after = node.after;
+        node.after.before = node.before;
+    }
+
+    private static int slot(long key, int length) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (length - 1);
+    }
+
+    private static class Node {
+
+        Node(long k, DEMTile t) {
+            key = k;
+            tile = t;
+        }
+        final long key;
+        DEMTile tile;
+        Node next;
+        Node before;
+        Node after;
+    }
+    private Node[] table;
+    private Node head;
+    private int size;
+    private final long capacity;
+    private long resident = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+}
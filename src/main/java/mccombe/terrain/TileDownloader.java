@@ -0,0 +1,216 @@
+package mccombe.terrain;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.*;
+import java.util.zip.ZipFile;
+
+/**
+ * TileDownloader fetches DEM data files over HTTP(S) on a small pool of
+ * threads, so that several tiles can be in flight at once. Each file is
+ * written to a ".part" file next to its final name and renamed into place
+ * only when it is complete, so an interrupted download never leaves a
+ * truncated file that would later be trusted. If a ".part" file is already
+ * present, the download resumes from where it stopped using an HTTP Range
+ * request. Requests for a file that is already being downloaded share the
+ * download in progress. A file already present is only trusted if it is
+ * complete; a damaged one is downloaded again.
+ *
+ * @author Mike
+ */
+public class TileDownloader {
+
+    /**
+     * Receives progress reports for a download. Reports arrive on the
+     * downloader's own threads.
+     */
+    public interface Listener {
+
+        /**
+         * @param filename the name of the file being downloaded
+         * @param sofar the number of bytes held so far, including any resumed part
+         * @param total the size of the complete file, or -1 if the server did not say
+         */
+        void progress(String filename, long sofar, long total);
+    }
+
+    /**
+     * @param threads the maximum number of files to download at once
+     */
+    public TileDownloader(int threads) {
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DEM tile download");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Start downloading a file, unless it is already being downloaded
+     *
+     * @param url the address of the file
+     * @param target the file to create
+     * @param listener receives progress reports; may be null
+     * @return a Future which yields the completed file
+     */
+    public Future<File> request(final URL url, final File target, final Listener listener) {
+        final String key = target.getAbsolutePath();
+        FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                try {
+                    fetch(url, target, listener);
+                    return target;
+                } finally {
+                    active.remove(key);
+                }
+            }
+        });
+        FutureTask<File> pending = active.putIfAbsent(key, task);
+        if (pending != null) {
+            return pending;
+        }
+        pool.execute(task);
+        return task;
+    }
+
+    /**
+     * Download a file and wait for it to arrive
+     *
+     * @param url the address of the file
+     * @param target the file to create
+     * @param listener receives progress reports; may be null
+     * @return the completed file
+     * @throws FileNotFoundException if the server does not have the file
+     * @throws IOException if the download fails
+     */
+    public File download(URL url, File target, Listener listener) throws IOException {
+        try {
+            return request(url, target, listener).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(String.format("Interrupted while downloading %s", url));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.toString(), cause);
+        }
+    }
+
+    /**
+     * @param target a file to be downloaded
+     * @return the partial file used while downloading it
+     */
+    public static File partFile(File target) {
+        return new File(target.getPath() + PARTEXTN);
+    }
+
+    /**
+     * @param target a file which may already have been downloaded
+     * @return true if the file is present and usable. A ZIP file must open
+     * and list its entries; a file left by an interrupted download or an
+     * incomplete copy usually does not.
+     */
+    public static boolean isComplete(File target) {
+        if (!target.isFile() || target.length() == 0) {
+            return false;
+        }
+        if (!target.getName().toLowerCase().endsWith(ZIPEXTN)) {
+            return true;
+        }
+        try {
+            ZipFile zip = new ZipFile(target);
+            try {
+                return zip.size() > 0;
+            } finally {
+                zip.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void fetch(URL url, File target, Listener listener) throws IOException {
+        if (isComplete(target)) {
+            return;
+        }
+        if (target.isFile() && !target.delete()) {
+            throw new IOException(String.format("Unable to replace damaged file %s", target.getPath()));
+        }
+        String filename = target.getName();
+        File part = partFile(target);
+        long sofar = part.isFile() ? part.length() : 0;
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        con.setConnectTimeout(TIMEOUT);
+        con.setReadTimeout(TIMEOUT);
+        if (sofar > 0) {
+            con.setRequestProperty("Range", String.format("bytes=%d-", sofar));
+        }
+        int status = con.getResponseCode();
+        if (status == HTTP_RANGE_NOT_SATISFIABLE && sofar > 0) {
+//The part file is no use (probably the file changed on the server), so start again
+            con.disconnect();
+            part.delete();
+            fetch(url, target, listener);
+            return;
+        }
+        if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE) {
+            con.disconnect();
+            throw new FileNotFoundException(String.format("Server has no file %s", url));
+        }
+        if (status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_PARTIAL) {
+            con.disconnect();
+            throw new IOException(String.format("Server returned HTTP %d for %s", status, url));
+        }
+        boolean append = status == HttpURLConnection.HTTP_PARTIAL;
+        if (!append) {
+            sofar = 0;
+        }
+        long length = con.getContentLengthLong();
+        long total = length < 0 ? -1 : sofar + length;
+        InputStream in = con.getInputStream();
+        try {
+            OutputStream out = new FileOutputStream(part, append);
+            try {
+                byte[] buffer = new byte[BUFFERLENGTH];
+                int count;
+                if (listener != null) {
+                    listener.progress(filename, sofar, total);
+                }
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                    sofar += count;
+                    if (listener != null) {
+                        listener.progress(filename, sofar, total);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (total >= 0 && sofar != total) {
+            throw new IOException(String.format("Download of %s stopped after %d of %d bytes", filename, sofar, total));
+        }
+        if (!part.renameTo(target)) {
+            if (!target.isFile()) {
+                throw new IOException(String.format("Unable to create %s", target.getPath()));
+            }
+            part.delete(); //Another process installed the file first
+        }
+    }
+    private final ExecutorService pool;
+    private final ConcurrentHashMap<String, FutureTask<File>> active = new ConcurrentHashMap<String, FutureTask<File>>();
+    private static final String PARTEXTN = ".part";
+    private static final String ZIPEXTN = ".zip";
+    private static final int BUFFERLENGTH = 1 << 16;
+    private static final int TIMEOUT = 60000; //Milliseconds
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+}
@@ -0,0 +1,32 @@
+package mccombe.terrain;
+
+/**
+ * TileFormat describes how a dataset's tiles are packaged, so that a
+ * TileSource can find and decode them without knowing which DEMReader it is
+ * serving. Every DEMReader is a TileFormat.
+ *
+ * @author Mike
+ */
+public interface TileFormat {
+
+    /**
+     * @return the number of samples in each row (and rows in each tile)
+     */
+    int recordlength();
+
+    /**
+     * @return the extension of the dataset's data files, e.g. ".zip"
+     */
+    String extn();
+
+    /**
+     * @return true if raw samples are stored little-endian
+     */
+    boolean littleendian();
+
+    /**
+     * @param name the tile name
+     * @return the name of the ZIP entry holding the tile's data
+     */
+    String zipEntryName(String name);
+}
@@ -0,0 +1,316 @@
+package mccombe.terrain;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+
+/**
+ * TileInventory keeps a persistent manifest of one dataset's files in the
+ * data directory, and a 360 x 180 coverage bitmap with one bit for every 1 x
+ * 1 degree tile. The bitmap starts from the dataset's built-in latitude
+ * limits and loses a bit whenever a tile is found not to exist, so a later
+ * request for that tile can be answered as missing in constant time, without
+ * touching the filesystem or the network. The manifest records each data
+ * file that has been decoded successfully (with its size, modification time,
+ * CRC and, once counted, the number of voids in the tile) and each tile
+ * known to be absent, with the address of the server which reported it
+ * missing; it is rewritten whenever it changes and re-read when the program
+ * next starts. An absent tile is only believed while tiles are fetched from
+ * the same address, so a wrong server or region setting does not hide real
+ * tiles once it is corrected.
+ * <p>
+ * All readers of the same dataset share one inventory.
+ *
+ * @author Mike
+ */
+public class TileInventory {
+
+    private TileInventory(File manifest, int south, int north, String server) {
+        file = manifest;
+        source = server;
+        for (int lat = Math.max(south, -90); lat <= Math.min(north, 89); lat++) {
+            for (int lon = -180; lon < 180; lon++) {
+                int bit = bit(lat, lon);
+                coverage.set(bit >> 6, coverage.get(bit >> 6) | (1L << bit));
+            }
+        }
+        load();
+    }
+
+    /**
+     * Get the inventory for a dataset, creating it if this is the first reader
+     * to ask
+     *
+     * @param manifest the manifest file
+     * @param south the latitude of the southernmost row of tiles the dataset can have
+     * @param north the latitude of the northernmost row of tiles the dataset can have
+     * @param server the address tiles are downloaded from. If it differs
+     * from the one the dataset's inventory was made for, the inventory is
+     * read again, ignoring tiles found absent at other addresses.
+     * @return the inventory
+     */
+    public static synchronized TileInventory forDataset(File manifest, int south, int north, String server) {
+        String key = manifest.getAbsolutePath();
+        TileInventory inventory = inventories.get(key);
+        if (inventory == null || !inventory.source.equals(server)) {
+            inventory = new TileInventory(manifest, south, north, server);
+            inventories.put(key, inventory);
+        }
+        return inventory;
+    }
+
+    /**
+     * @param lat latitude of the tile's southern edge in whole degrees
+     * @param lon longitude of the tile's western edge in whole degrees
+     * @return false if the dataset is known to have no tile here
+     */
+    public boolean covered(int lat, int lon) {
+        if (lat < -90 || lat > 89 || lon < -180 || lon > 179) {
+            return false;
+        }
+        int bit = bit(lat, lon);
+        return (coverage.get(bit >> 6) & (1L << bit)) != 0;
+    }
+
+    /**
+     * Record that the dataset has no tile for a location
+     *
+     * @param lat latitude of the tile's southern edge in whole degrees
+     * @param lon longitude of the tile's western edge in whole degrees
+     * @param name the tile name
+     * @param server the address of the server which reported the tile missing
+     */
+    public synchronized void markAbsent(int lat, int lon, String name, String server) {
+        if (server.equals(source)) {
+            clearBit(lat, lon);
+        }
+        entries.put(name, new Entry(lat, lon, server));
+        save();
+    }
+
+    /**
+     * Record that a data file has been decoded successfully. The file's CRC is
+     * calculated only if it is new to the manifest or has changed since it
+     * was last recorded.
+     *
+     * @param name the tile name
+     * @param data the tile's data file
+     */
+    public void markAvailable(String name, File data) {
+        long size = data.length();
+        long modified = data.lastModified();
+        synchronized (this) {
+            Entry entry = entries.get(name);
+            if (entry != null && entry.available && entry.size == size && entry.modified == modified) {
+                return;
+            }
+        }
+        long crc;
+        try {
+            crc = crc(data);
+        } catch (IOException e) {
+            return; //Recorded next time the tile is loaded
+        }
+        synchronized (this) {
+            entries.put(name, new Entry(size, modified, crc, -1));
+            save();
+        }
+    }
+
+    /**
+     * Record the number of voids in a tile whose data file has been recorded
+     * as available. The count is forgotten if the data file changes.
+     *
+     * @param name the tile name
+     * @param count the number of void posts in the tile
+     */
+    public synchronized void markVoids(String name, long count) {
+        Entry entry = entries.get(name);
+        if (entry == null || !entry.available || entry.voids == count) {
+            return;
+        }
+        entries.put(name, new Entry(entry.size, entry.modified, entry.crc, count));
+        save();
+    }
+
+    /**
+     * @param name the tile name
+     * @return the number of voids in the tile, or -1 if they have not been counted
+     */
+    public synchronized long voids(String name) {
+        Entry entry = entries.get(name);
+        return entry != null && entry.available ? entry.voids : -1;
+    }
+
+    /**
+     * @param name the tile name
+     * @return true if the tile's data file has been decoded successfully
+     */
+    public synchronized boolean available(String name) {
+        Entry entry = entries.get(name);
+        return entry != null && entry.available;
+    }
+
+    /**
+     * @param name the tile name
+     * @return the recorded CRC of the tile's data file, or -1 if there is none
+     */
+    public synchronized long crc(String name) {
+        Entry entry = entries.get(name);
+        return entry != null && entry.available ? entry.crc : -1;
+    }
+
+    /**
+     * @param name the tile name
+     * @return the recorded size of the tile's data file, or -1 if there is none
+     */
+    public synchronized long size(String name) {
+        Entry entry = entries.get(name);
+        return entry != null && entry.available ? entry.size : -1;
+    }
+
+    /**
+     * Calculate the CRC-32 of a file
+     */
+    public static long crc(File data) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream(data);
+        try {
+            byte[] buffer = new byte[BUFFERLENGTH];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    private void load() {
+        if (!file.isFile()) {
+            return;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] field = line.trim().split("\\s+");
+                    try {
+                        if ((field.length == 5 || field.length == 6) && field[0].equals(AVAILABLE)) {
+                            long voids = field.length == 6 ? Long.parseLong(field[5]) : -1;
+                            entries.put(field[1], new Entry(Long.parseLong(field[2]), Long.parseLong(field[3]), Long.parseLong(field[4], 16), voids));
+                        } else if (field.length == 5 && field[0].equals(ABSENT) && field[4].equals(source)) {
+                            int lat = Integer.parseInt(field[2]);
+                            int lon = Integer.parseInt(field[3]);
+                            entries.put(field[1], new Entry(lat, lon, source));
+                            clearBit(lat, lon);
+                        }
+                        //Absent tiles reported by another server, or not recorded with one, are looked up again
+                    } catch (NumberFormatException e) {
+                        //Ignore a damaged line; the tile is simply looked up again
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            //An unreadable manifest is rebuilt as tiles are loaded
+        }
+    }
+
+    /**
+     * Write the manifest to a temporary file and rename it into place, so that
+     * a crash never leaves a half-written manifest
+     */
+    private void save() {
+        File parent = file.getAbsoluteFile().getParentFile();
+        try {
+            File temp = File.createTempFile(file.getName(), ".tmp", parent);
+            PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(temp)));
+            try {
+                out.printf("# TerrainTool tile inventory%n");
+                for (Map.Entry<String, Entry> item : new TreeMap<String, Entry>(entries).entrySet()) {
+                    Entry entry = item.getValue();
+                    if (entry.available && entry.voids >= 0) {
+                        out.printf("%s %s %d %d %08x %d%n", AVAILABLE, item.getKey(), entry.size, entry.modified, entry.crc, entry.voids);
+                    } else if (entry.available) {
+                        out.printf("%s %s %d %d %08x%n", AVAILABLE, item.getKey(), entry.size, entry.modified, entry.crc);
+                    } else {
+                        out.printf("%s %s %d %d %s%n", ABSENT, item.getKey(), entry.lat, entry.lon, entry.source);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                file.delete();
+                if (!temp.renameTo(file)) {
+                    temp.delete();
+                }
+            }
+        } catch (IOException e) {
+            //The manifest is only an optimisation; carry on without saving it
+        }
+    }
+
+    private void clearBit(int lat, int lon) {
+        if (lat < -90 || lat > 89 || lon < -180 || lon > 179) {
+            return;
+        }
+        int bit = bit(lat, lon);
+        long word;
+        do {
+            word = coverage.get(bit >> 6);
+        } while (!coverage.compareAndSet(bit >> 6, word, word & ~(1L << bit)));
+    }
+
+    private static int bit(int lat, int lon) {
+        return (lat + 90) * 360 + (lon + 180);
+    }
+
+    private static class Entry {
+
+        Entry(long length, long time, long checksum, long count) {
+            available = true;
+            size = length;
+            modified = time;
+            crc = checksum;
+            voids = count;
+            lat = 0;
+            lon = 0;
+            source = null;
+        }
+
+        Entry(int latitude, int longitude, String server) {
+            available = false;
+            source = server;
+            size = -1;
+            modified = 0;
+            crc = -1;
+            voids = -1;
+            lat = latitude;
+            lon = longitude;
+        }
+        final boolean available;
+        final long size;
+        final long modified;
+        final long crc;
+        final long voids;
+        final int lat;
+        final int lon;
+        final String source;
+    }
+    private final File file;
+    private final String source;
+    private final AtomicLongArray coverage = new AtomicLongArray((360 * 180 + 63) / 64);
+    private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    private static final HashMap<String, TileInventory> inventories = new HashMap<String, TileInventory>();
+    private static final String AVAILABLE = "available";
+    private static final String ABSENT = "absent";
+    private static final int BUFFERLENGTH = 1 << 16;
+}
@@ -0,0 +1,259 @@
+package mccombe.terrain;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A TilePack is a single file holding many tiles of one dataset in
+ * TerrainTool's own block-compressed format, written by TilePackWriter.
+ * Each tile is divided into blocks of rows which are compressed
+ * independently, so any row can be read by inflating one small block. A
+ * pack for a whole region can be copied to another machine as one file.
+ * <p>
+ * File layout (all numbers big-endian):
+ * <pre>
+ *   "TTPK" version                      header
+ *   block data ...                      row-wise deltas, zigzag varints, deflated
+ *   dataset recordlength blockrows n    directory, as written by DataOutputStream
+ *   n x { name rows blocks { offset packedlength length } x blocks }
+ *   directory-offset "TTPK"             trailer
+ * </pre>
+ *
+ * @author Mike
+ */
+public class TilePack implements TileSource {
+
+    /**
+     * Open a pack file and read its directory
+     *
+     * @param pack the file
+     * @throws IOException if the file cannot be read or is not a tile pack
+     */
+    public TilePack(File pack) throws IOException {
+        file = pack;
+        RandomAccessFile raf = new RandomAccessFile(pack, "r");
+        channel = raf.getChannel();
+        try {
+            long directory = directoryOffset(channel, pack);
+            ByteBuffer dir = read(channel, pack, directory, (int) (channel.size() - TRAILERLENGTH - directory));
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(dir.array()));
+            datasetName = in.readUTF();
+            recordlength = in.readInt();
+            blockRows = in.readInt();
+            int count = in.readInt();
+            for (int t = 0; t < count; t++) {
+                String name = in.readUTF();
+                int rows = in.readInt();
+                int blocks = in.readInt();
+                long[] offsets = new long[blocks];
+                int[] packed = new int[blocks];
+                int[] lengths = new int[blocks];
+                for (int b = 0; b < blocks; b++) {
+                    offsets[b] = in.readLong();
+                    packed[b] = in.readInt();
+                    lengths[b] = in.readInt();
+                }
+                entries.put(name, new Entry(rows, offsets, packed, lengths));
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read the dataset name of a pack file without reading its directory or
+     * keeping the file open
+     *
+     * @param pack the file
+     * @return the dataset the tiles belong to, as given by DEMReader.inventoryName()
+     * @throws IOException if the file cannot be read or is not a tile pack
+     */
+    public static String datasetName(File pack) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(pack, "r");
+        try {
+            FileChannel in = raf.getChannel();
+            long directory = directoryOffset(in, pack);
+            if (in.size() - TRAILERLENGTH - directory < 2) {
+                throw new IOException(String.format("%s is not a tile pack", pack.getPath()));
+            }
+            int utflength = read(in, pack, directory, 2).getShort(0) & 0xFFFF;
+            if (in.size() - TRAILERLENGTH - directory < 2 + utflength) {
+                throw new IOException(String.format("%s is not a tile pack", pack.getPath()));
+            }
+            ByteBuffer label = read(in, pack, directory, 2 + utflength);
+            return new DataInputStream(new ByteArrayInputStream(label.array())).readUTF();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the dataset the tiles belong to, as given by DEMReader.inventoryName()
+     */
+    public String datasetName() {
+        return datasetName;
+    }
+
+    public int recordlength() {
+        return recordlength;
+    }
+
+    /**
+     * @return the names of the tiles in the pack
+     */
+    public Set<String> tileNames() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    @Override
+    public DEMTile getTile(String name, TileFormat format) {
+        Entry entry = entries.get(name);
+        if (entry == null || format.recordlength() != recordlength) {
+            return null;
+        }
+        return new PackTile(name, entry);
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Check a pack's header and trailer
+     *
+     * @return the position of the directory
+     */
+    private static long directoryOffset(FileChannel in, File pack) throws IOException {
+        long length = in.size();
+        if (length < HEADERLENGTH + TRAILERLENGTH) {
+            throw new IOException(String.format("%s is not a tile pack", pack.getPath()));
+        }
+        ByteBuffer header = read(in, pack, 0, HEADERLENGTH);
+        ByteBuffer trailer = read(in, pack, length - TRAILERLENGTH, TRAILERLENGTH);
+        long directory = trailer.getLong(0);
+        if (header.getInt(0) != MAGIC || trailer.getInt(8) != MAGIC || directory < HEADERLENGTH || directory > length - TRAILERLENGTH) {
+            throw new IOException(String.format("%s is not a tile pack", pack.getPath()));
+        }
+        if (header.getInt(4) != VERSION) {
+            throw new IOException(String.format("%s is a tile pack of unsupported version %d", pack.getPath(), header.getInt(4)));
+        }
+        return directory;
+    }
+
+    /**
+     * Read part of the file. FileChannel's positional reads are safe for
+     * several threads at once.
+     */
+    private ByteBuffer read(long position, int length) throws IOException {
+        return read(channel, file, position, length);
+    }
+
+    private static ByteBuffer read(FileChannel in, File pack, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException(String.format("Unexpected end of tile pack %s", pack.getPath()));
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * A tile read from the pack one block of rows at a time
+     */
+    private class PackTile extends DEMTile {
+
+        PackTile(String name, Entry tile) {
+            super(name, tile.rows, recordlength);
+            entry = tile;
+            blocks = new AtomicReferenceArray<short[]>(tile.offsets.length);
+        }
+
+        /**
+         * @throws IllegalStateException if the block cannot be read from the pack
+         */
+        @Override
+        public int getValue(int row, int col) {
+            int b = row / blockRows;
+            short[] block = blocks.get(b);
+            if (block == null) {
+                block = decodeBlock(b);
+            }
+            return block[(row - b * blockRows) * recordlength + col];
+        }
+
+        /**
+         * @throws IllegalStateException if a block cannot be read from the pack
+         */
+        @Override
+        public void decodeRows(int first, int last) {
+            for (int b = Math.max(0, first) / blockRows; b <= Math.min(last, entry.rows - 1) / blockRows; b++) {
+                if (blocks.get(b) == null) {
+                    decodeBlock(b);
+                }
+            }
+        }
+
+        @Override
+        public boolean isDecoded() {
+            return false;
+        }
+
+        @Override
+        public long bytes() {
+            return 2L * recordlength * rows();
+        }
+
+        private short[] decodeBlock(int b) {
+            synchronized (blocks) {
+                short[] block = blocks.get(b);
+                if (block != null) {
+                    return block;
+                }
+                int rows = Math.min(blockRows, entry.rows - b * blockRows);
+                try {
+                    ByteBuffer packed = read(entry.offsets[b], entry.packed[b]);
+                    block = TilePackWriter.decodeBlock(packed.array(), entry.lengths[b], rows, recordlength);
+                } catch (IOException e) {
+                    throw new IllegalStateException(String.format("Unable to read tile %s from %s - %s", getName(), file.getPath(), e.toString()));
+                }
+                blocks.set(b, block);
+                return block;
+            }
+        }
+        private final Entry entry;
+        private final AtomicReferenceArray<short[]> blocks;
+    }
+
+    private static class Entry {
+
+        Entry(int count, long[] blockOffsets, int[] packedLengths, int[] blockLengths) {
+            rows = count;
+            offsets = blockOffsets;
+            packed = packedLengths;
+            lengths = blockLengths;
+        }
+        final int rows;
+        final long[] offsets;
+        final int[] packed;
+        final int[] lengths;
+    }
+    private final File file;
+    private final FileChannel channel;
+    private final String datasetName;
+    private final int recordlength;
+    private final int blockRows;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    static final int MAGIC = 0x5454504B; //"TTPK"
+    static final int VERSION = 1;
+    static final int HEADERLENGTH = 8;
+    static final int TRAILERLENGTH = 12;
+    public static final String EXTN = ".ttpack";
+}
@@ -0,0 +1,247 @@
+package mccombe.terrain;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * TilePackWriter converts tiles from any TileSource into a TilePack file.
+ * Each tile is cut into blocks of BLOCKROWS rows. Within a block every
+ * sample is stored as its difference from the sample to its left (the first
+ * sample of a row from the first sample of the row above), zigzag-encoded
+ * as a variable-length integer, and the block is then deflated on its own.
+ * Terrain changes slowly from post to post, so most differences fit in one
+ * byte before compression.
+ *
+ * @author Mike
+ */
+public class TilePackWriter {
+
+    /**
+     * @param pack the file to create. It is written under a temporary name
+     * and renamed into place when complete.
+     * @param dataset the dataset name recorded in the pack
+     * @param format the dataset's record length
+     */
+    public TilePackWriter(File pack, String dataset, TileFormat format) {
+        file = pack;
+        datasetName = dataset;
+        recordlength = format.recordlength();
+    }
+
+    /**
+     * Add a tile to the pack
+     *
+     * @param tile the tile; its name is used to find it again
+     * @throws IOException if the pack cannot be written
+     */
+    public void add(DEMTile tile) throws IOException {
+        if (out == null) {
+            temp = File.createTempFile(file.getName(), ".part", file.getAbsoluteFile().getParentFile());
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), BUFFERLENGTH));
+            out.writeInt(TilePack.MAGIC);
+            out.writeInt(TilePack.VERSION);
+            position = TilePack.HEADERLENGTH;
+        }
+        int rows = tile.rows();
+        int blocks = (rows + BLOCKROWS - 1) / BLOCKROWS;
+        long[] offsets = new long[blocks];
+        int[] packed = new int[blocks];
+        int[] lengths = new int[blocks];
+        byte[] raw = new byte[BLOCKROWS * recordlength * 3];
+        byte[] compressed = new byte[raw.length + 1024];
+        Deflater deflater = new Deflater();
+        try {
+            for (int b = 0; b < blocks; b++) {
+                int r0 = b * BLOCKROWS;
+                int length = encodeBlock(tile, r0, Math.min(rows, r0 + BLOCKROWS), raw);
+                deflater.reset();
+                deflater.setInput(raw, 0, length);
+                deflater.finish();
+                int count = 0;
+                while (!deflater.finished()) {
+                    if (count == compressed.length) {
+                        compressed = java.util.Arrays.copyOf(compressed, compressed.length * 2);
+                    }
+                    count += deflater.deflate(compressed, count, compressed.length - count);
+                }
+                out.write(compressed, 0, count);
+                offsets[b] = position;
+                packed[b] = count;
+                lengths[b] = length;
+                position += count;
+            }
+        } finally {
+            deflater.end();
+        }
+        entries.add(new Written(tile.getName(), rows, offsets, packed, lengths));
+    }
+
+    /**
+     * Write the pack's directory and install the file under its final name
+     *
+     * @return the number of tiles written
+     * @throws IOException if the pack cannot be written
+     */
+    public int close() throws IOException {
+        if (out == null) {
+            return 0;
+        }
+        long directory = position;
+        out.writeUTF(datasetName);
+        out.writeInt(recordlength);
+        out.writeInt(BLOCKROWS);
+        out.writeInt(entries.size());
+        for (Written entry : entries) {
+            out.writeUTF(entry.name);
+            out.writeInt(entry.rows);
+            out.writeInt(entry.offsets.length);
+            for (int b = 0; b < entry.offsets.length; b++) {
+                out.writeLong(entry.offsets[b]);
+                out.writeInt(entry.packed[b]);
+                out.writeInt(entry.lengths[b]);
+            }
+        }
+        out.writeLong(directory);
+        out.writeInt(TilePack.MAGIC);
+        out.close();
+        out = null;
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException(String.format("Unable to create tile pack %s", file.getPath()));
+            }
+        }
+        return entries.size();
+    }
+
+    /**
+     * Give up writing the pack: close the temporary file and delete it.
+     * Nothing happens if the pack has already been closed.
+     */
+    public void abort() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            //The file is deleted anyway
+        }
+        out = null;
+        temp.delete();
+    }
+
+    /**
+     * Encode rows [first, last) of a tile as zigzag varint differences
+     *
+     * @return the number of bytes used
+     */
+    private int encodeBlock(DEMTile tile, int first, int last, byte[] raw) {
+        int op = 0;
+        int above = 0;
+        for (int row = first; row < last; row++) {
+            int left = above;
+            for (int col = 0; col < recordlength; col++) {
+                int value = tile.getValue(row, col);
+                int delta = value - left;
+                int zigzag = (delta << 1) ^ (delta >> 31);
+                while ((zigzag & ~0x7F) != 0) {
+                    raw[op++] = (byte) ((zigzag & 0x7F) | 0x80);
+                    zigzag >>>= 7;
+                }
+                raw[op++] = (byte) zigzag;
+                if (col == 0) {
+                    above = value;
+                }
+                left = value;
+            }
+        }
+        return op;
+    }
+
+    /**
+     * Inflate and decode one block written by encodeBlock
+     *
+     * @param packed the deflated block
+     * @param length the length of the block before deflation
+     * @param rows the number of rows in the block
+     * @param recordlength the number of samples in each row
+     * @return the samples, row by row
+     * @throws IOException if the block is corrupt
+     */
+    static short[] decodeBlock(byte[] packed, int length, int rows, int recordlength) throws IOException {
+        byte[] raw = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(packed);
+            int count = 0;
+            while (count < length) {
+                int n = inflater.inflate(raw, count, length - count);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated tile pack block");
+                }
+                count += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt tile pack block - " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        short[] block = new short[rows * recordlength];
+        int ip = 0;
+        int above = 0;
+        int i = 0;
+        for (int row = 0; row < rows; row++) {
+            int left = above;
+            for (int col = 0; col < recordlength; col++) {
+                int zigzag = 0;
+                int shift = 0;
+                int b;
+                do {
+                    if (ip >= length) {
+                        throw new IOException("Corrupt tile pack block");
+                    }
+                    b = raw[ip++];
+                    zigzag |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                int value = left + ((zigzag >>> 1) ^ -(zigzag & 1));
+                block[i++] = (short) value;
+                if (col == 0) {
+                    above = value;
+                }
+                left = value;
+            }
+        }
+        return block;
+    }
+    private static class Written {
+
+        Written(String tile, int count, long[] blockOffsets, int[] packedLengths, int[] blockLengths) {
+            name = tile;
+            rows = count;
+            offsets = blockOffsets;
+            packed = packedLengths;
+            lengths = blockLengths;
+        }
+        final String name;
+        final int rows;
+        final long[] offsets;
+        final int[] packed;
+        final int[] lengths;
+    }
+    private final File file;
+    private final String datasetName;
+    private final int recordlength;
+    private File temp = null;
+    private DataOutputStream out = null;
+    private long position = 0;
+    private final List<Written> entries = new ArrayList<Written>();
+    public static final int BLOCKROWS = 64;
+    private static final int BUFFERLENGTH = 1 << 16;
+}
@@ -0,0 +1,21 @@
+package mccombe.terrain;
+
+/**
+ * A TileSource supplies DEM tiles by name. Sources are chained (see
+ * ChainedTileSource) so that fast sources, such as tiles held in memory or
+ * extracted to disk, are tried before slow ones, such as a download.
+ *
+ * @author Mike
+ */
+public interface TileSource {
+
+    /**
+     * Get a tile from this source
+     *
+     * @param name the tile name, as produced by DEMReader.makename()
+     * @param format how the dataset's tiles are packaged
+     * @return the tile, or null if this source does not have it
+     * @throws MissingDataFileException if the source has the tile but cannot read it
+     */
+    DEMTile getTile(String name, TileFormat format) throws MissingDataFileException;
+}
@@ -0,0 +1,265 @@
+package mccombe.terrain;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * A TileSummary records where a tile's voids are, as a BitSet with one bit
+ * per post, and divides the tile into blocks of BLOCK x BLOCK posts with the
+ * lowest and highest height and the number of voids in each. It lets the
+ * reader tell that a stencil contains no voids without looking at the posts,
+ * and answer questions about the heights over an area without reading the
+ * tile's rows at all.
+ * <p>
+ * A summary is built once, in one pass over a newly decoded tile, and saved
+ * next to the data so that later sessions read it instead. File layout (all
+ * numbers big-endian, as written by DataOutputStream):
+ * <pre>
+ *   "TTSM" version rows columns voids
+ *   blocks x { min max voidcount }      short short int
+ *   words x long                        the void bits, present only if voids > 0
+ * </pre>
+ *
+ * @author Mike
+ */
+public class TileSummary {
+
+    private TileSummary(int rowcount, int columncount) {
+        rows = rowcount;
+        columns = columncount;
+        across = (columns + BLOCK - 1) / BLOCK;
+        down = (rows + BLOCK - 1) / BLOCK;
+        min = new short[across * down];
+        max = new short[across * down];
+        blockVoids = new int[across * down];
+    }
+
+    /**
+     * Summarise a tile
+     *
+     * @param tile the tile
+     * @param missingValue the dataset's void marker
+     * @return the summary
+     */
+    public static TileSummary of(DEMTile tile, int missingValue) {
+        TileSummary summary = new TileSummary(tile.rows(), tile.width());
+        java.util.Arrays.fill(summary.min, Short.MAX_VALUE);
+        java.util.Arrays.fill(summary.max, Short.MIN_VALUE);
+        BitSet bits = new BitSet();
+        for (int row = 0; row < summary.rows; row++) {
+            int base = (row / BLOCK) * summary.across;
+            for (int col = 0; col < summary.columns; col++) {
+                int v = tile.getValue(row, col);
+                int b = base + col / BLOCK;
+                if (v == missingValue) {
+                    bits.set(row * summary.columns + col);
+                    summary.blockVoids[b]++;
+                    summary.voids++;
+                } else {
+                    summary.min[b] = (short) Math.min(summary.min[b], v);
+                    summary.max[b] = (short) Math.max(summary.max[b], v);
+                }
+            }
+        }
+        summary.voidBits = summary.voids > 0 ? bits : null;
+        return summary;
+    }
+
+    /**
+     * Read a summary saved by write()
+     *
+     * @param file the file
+     * @return the summary
+     * @throws IOException if the file cannot be read or is not a tile summary
+     */
+    public static TileSummary read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFERLENGTH));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(String.format("%s is not a tile summary", file.getPath()));
+            }
+            TileSummary summary = new TileSummary(in.readInt(), in.readInt());
+            summary.voids = in.readLong();
+            ByteBuffer blocks = readFully(in, 8 * summary.min.length);
+            for (int b = 0; b < summary.min.length; b++) {
+                summary.min[b] = blocks.getShort();
+                summary.max[b] = blocks.getShort();
+                summary.blockVoids[b] = blocks.getInt();
+            }
+            if (summary.voids > 0) {
+                int words = ((int) ((long) summary.rows * summary.columns) + 63) / 64;
+                summary.voidBits = BitSet.valueOf(readFully(in, 8 * words).asLongBuffer());
+            }
+            return summary;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Save the summary. It is written to a temporary file and renamed into
+     * place, so an interrupted write never leaves a damaged summary behind.
+     *
+     * @param file the file to create
+     * @throws IOException if the file cannot be written
+     */
+    public void write(File file) throws IOException {
+        File temp = File.createTempFile(file.getName(), ".part", file.getAbsoluteFile().getParentFile());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), BUFFERLENGTH));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(rows);
+            out.writeInt(columns);
+            out.writeLong(voids);
+            for (int b = 0; b < min.length; b++) {
+                out.writeShort(min[b]);
+                out.writeShort(max[b]);
+                out.writeInt(blockVoids[b]);
+            }
+            if (voidBits != null) {
+                long[] words = voidBits.toLongArray();
+                int count = ((int) ((long) rows * columns) + 63) / 64;
+                for (int w = 0; w < count; w++) {
+                    out.writeLong(w < words.length ? words[w] : 0L);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            if (!file.isFile()) { //Another reader may have saved the same summary first
+                throw new IOException(String.format("Unable to create tile summary %s", file.getPath()));
+            }
+        }
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int columns() {
+        return columns;
+    }
+
+    /**
+     * @return the number of voids in the tile
+     */
+    public long voids() {
+        return voids;
+    }
+
+    /**
+     * @param row the row number, counting from the northern edge
+     * @param col the column number, counting from the western edge
+     * @return true if the post is a void
+     */
+    public boolean isVoid(int row, int col) {
+        return voidBits != null && voidBits.get(row * columns + col);
+    }
+
+    /**
+     * @return true if there are no voids in the given rows and columns. Posts
+     * outside the tile count as voids.
+     */
+    public boolean voidFree(int firstRow, int lastRow, int firstCol, int lastCol) {
+        if (firstRow < 0 || firstCol < 0 || lastRow >= rows || lastCol >= columns) {
+            return false;
+        }
+        if (voids == 0) {
+            return true;
+        }
+        for (int br = firstRow / BLOCK; br <= lastRow / BLOCK; br++) {
+            for (int bc = firstCol / BLOCK; bc <= lastCol / BLOCK; bc++) {
+                if (blockVoids[br * across + bc] != 0) {
+                    return voidFreePosts(firstRow, lastRow, firstCol, lastCol);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The lowest height in the blocks overlapping a range of posts. The
+     * result covers whole blocks, so it may be lower than the lowest height
+     * in the range itself.
+     *
+     * @return the height, or Integer.MAX_VALUE if the blocks are all void
+     */
+    public int min(int firstRow, int lastRow, int firstCol, int lastCol) {
+        int lowest = Integer.MAX_VALUE;
+        for (int br = Math.max(0, firstRow) / BLOCK; br <= Math.min(lastRow, rows - 1) / BLOCK; br++) {
+            for (int bc = Math.max(0, firstCol) / BLOCK; bc <= Math.min(lastCol, columns - 1) / BLOCK; bc++) {
+                int b = br * across + bc;
+                if (blockVoids[b] < blockPosts(br, bc)) {
+                    lowest = Math.min(lowest, min[b]);
+                }
+            }
+        }
+        return lowest;
+    }
+
+    /**
+     * The highest height in the blocks overlapping a range of posts. The
+     * result covers whole blocks, so it may be higher than the highest height
+     * in the range itself.
+     *
+     * @return the height, or Integer.MIN_VALUE if the blocks are all void
+     */
+    public int max(int firstRow, int lastRow, int firstCol, int lastCol) {
+        int highest = Integer.MIN_VALUE;
+        for (int br = Math.max(0, firstRow) / BLOCK; br <= Math.min(lastRow, rows - 1) / BLOCK; br++) {
+            for (int bc = Math.max(0, firstCol) / BLOCK; bc <= Math.min(lastCol, columns - 1) / BLOCK; bc++) {
+                int b = br * across + bc;
+                if (blockVoids[b] < blockPosts(br, bc)) {
+                    highest = Math.max(highest, max[b]);
+                }
+            }
+        }
+        return highest;
+    }
+
+    /**
+     * @return the approximate number of bytes of memory occupied by the summary
+     */
+    public long bytes() {
+        return 8L * min.length + (voidBits == null ? 0 : voidBits.size() / 8);
+    }
+
+    private static ByteBuffer readFully(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private boolean voidFreePosts(int firstRow, int lastRow, int firstCol, int lastCol) {
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int bit = row * columns + firstCol; bit <= row * columns + lastCol; bit++) {
+                if (voidBits.get(bit)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private int blockPosts(int br, int bc) {
+        return Math.min(BLOCK, rows - br * BLOCK) * Math.min(BLOCK, columns - bc * BLOCK);
+    }
+    private final int rows;
+    private final int columns;
+    private final int across;
+    private final int down;
+    private final short[] min;
+    private final short[] max;
+    private final int[] blockVoids;
+    private long voids = 0;
+    private BitSet voidBits = null;
+    public static final int BLOCK = 64;
+    public static final String EXTN = ".sum";
+    private static final int MAGIC = 0x5454534D; //"TTSM"
+    private static final int VERSION = 1;
+    private static final int BUFFERLENGTH = 1 << 16;
+}
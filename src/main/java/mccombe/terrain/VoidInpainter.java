@@ -0,0 +1,185 @@
+package mccombe.terrain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * VoidInpainter fills the voids in a tile with a smooth surface which meets
+ * the surrounding heights: each filled post is the average of its four
+ * neighbours (a solution of Laplace's equation with the valid posts held
+ * fixed). Solving this directly on a full-resolution tile would need many
+ * thousands of sweeps for a large void, so it is solved on a pyramid of
+ * coarser grids first. Each coarser grid halves the resolution, averaging the
+ * valid posts beneath each of its cells, until a grid has no voids left. The
+ * voids are then filled from the coarsest grid downwards: each grid starts
+ * from a bilinear interpolation of the one above and is finished with a few
+ * Gauss-Seidel sweeps over its voids only. Building the pyramid reads every
+ * post once at each level, about 4/3 of the tile in all, so the cost is
+ * proportional to the size of the tile; only the sweeps depend on the number
+ * of voids.
+ *
+ * @author Mike
+ */
+public class VoidInpainter {
+
+    private VoidInpainter() {
+    }
+
+    /**
+     * Fill the voids in a tile's heights
+     *
+     * @param heights the tile's heights, row by row from the northern edge;
+     * updated in place
+     * @param rows the number of rows
+     * @param columns the number of posts in each row
+     * @param missingValue the dataset's void marker
+     * @return the number of voids filled. A tile with no valid posts at all
+     * is left unchanged.
+     */
+    public static int fill(short[] heights, int rows, int columns, int missingValue) {
+        Level fine = new Level(rows, columns);
+        int count = 0;
+        for (int n = 0; n < heights.length; n++) {
+            if (heights[n] == missingValue) {
+                count++;
+            } else {
+                fine.known[n] = true;
+                fine.value[n] = heights[n];
+            }
+        }
+        if (count == 0 || count == heights.length) {
+            return 0;
+        }
+        fine.findVoids(count);
+        List<Level> levels = new ArrayList<Level>();
+        levels.add(fine);
+        Level level = fine;
+        while (level.voids.length > 0) { //A 1 x 1 grid is never void, as some post is valid
+            level = level.coarser();
+            levels.add(level);
+        }
+        for (int l = levels.size() - 2; l >= 0; l--) {
+            level = levels.get(l);
+            level.interpolate(levels.get(l + 1));
+            level.relax(SWEEPS);
+        }
+        for (int n : fine.voids) {
+            heights[n] = (short) Math.round(fine.value[n]);
+        }
+        return count;
+    }
+
+    /**
+     * One grid of the pyramid
+     */
+    private static class Level {
+
+        Level(int rowcount, int columncount) {
+            rows = rowcount;
+            columns = columncount;
+            value = new float[rows * columns];
+            known = new boolean[rows * columns];
+        }
+
+        void findVoids(int count) {
+            voids = new int[count];
+            int v = 0;
+            for (int n = 0; n < known.length; n++) {
+                if (!known[n]) {
+                    voids[v++] = n;
+                }
+            }
+        }
+
+        /**
+         * @return a grid of half the resolution, each cell holding the mean
+         * of the valid posts beneath it
+         */
+        Level coarser() {
+            Level coarse = new Level((rows + 1) / 2, (columns + 1) / 2);
+            int[] posts = new int[coarse.value.length];
+            for (int r = 0; r < rows; r++) {
+                int base = (r / 2) * coarse.columns;
+                for (int c = 0; c < columns; c++) {
+                    if (known[r * columns + c]) {
+                        coarse.value[base + c / 2] += value[r * columns + c];
+                        posts[base + c / 2]++;
+                    }
+                }
+            }
+            int count = 0;
+            for (int n = 0; n < posts.length; n++) {
+                if (posts[n] > 0) {
+                    coarse.known[n] = true;
+                    coarse.value[n] /= posts[n];
+                } else {
+                    count++;
+                }
+            }
+            coarse.findVoids(count);
+            return coarse;
+        }
+
+        /**
+         * Set each void to the bilinear interpolation of the cell centres of
+         * a coarser grid
+         */
+        void interpolate(Level coarse) {
+            for (int n : voids) {
+                double y = clamp(((n / columns) - 0.5) / 2.0, coarse.rows - 1);
+                double x = clamp(((n % columns) - 0.5) / 2.0, coarse.columns - 1);
+                int r0 = (int) y;
+                int c0 = (int) x;
+                int r1 = Math.min(r0 + 1, coarse.rows - 1);
+                int c1 = Math.min(c0 + 1, coarse.columns - 1);
+                double fy = y - r0;
+                double fx = x - c0;
+                double top = (1.0 - fx) * coarse.value[r0 * coarse.columns + c0] + fx * coarse.value[r0 * coarse.columns + c1];
+                double bottom = (1.0 - fx) * coarse.value[r1 * coarse.columns + c0] + fx * coarse.value[r1 * coarse.columns + c1];
+                value[n] = (float) ((1.0 - fy) * top + fy * bottom);
+            }
+        }
+
+        /**
+         * Gauss-Seidel sweeps over the voids. Posts beyond the edge of the
+         * tile are left out of the average.
+         */
+        void relax(int sweeps) {
+            for (int s = 0; s < sweeps; s++) {
+                for (int n : voids) {
+                    int r = n / columns;
+                    int c = n - r * columns;
+                    float sum = 0.0f;
+                    int count = 0;
+                    if (r > 0) {
+                        sum += value[n - columns];
+                        count++;
+                    }
+                    if (r < rows - 1) {
+                        sum += value[n + columns];
+                        count++;
+                    }
+                    if (c > 0) {
+                        sum += value[n - 1];
+                        count++;
+                    }
+                    if (c < columns - 1) {
+                        sum += value[n + 1];
+                        count++;
+                    }
+                    value[n] = sum / count;
+                }
+            }
+        }
+
+        private static double clamp(double x, int max) {
+            return Math.max(0.0, Math.min(x, (double) max));
+        }
+        final int rows;
+        final int columns;
+        final float[] value;
+        final boolean[] known;
+        int[] voids;
+    }
+    private static final int SWEEPS = 8; //Gauss-Seidel sweeps at each level of the pyramid
+}
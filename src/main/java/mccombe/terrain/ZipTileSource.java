@@ -0,0 +1,221 @@
+package mccombe.terrain;
+
+import java.io.*;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.*;
+
+/**
+ * A ZipTileSource reads tiles from the ZIP files in a local directory. Each
+ * tile's entry is found through the archive's central directory, so opening
+ * a tile costs the same whatever order the entries are in, and recently used
+ * archives are kept open with their entries resolved. A payload that is a
+ * TIFF file, as ASTER tiles are, is opened as a TiffTile; anything else is
+ * read as raw 16-bit records. If a RawTileStore is supplied, the payload is
+ * extracted to it once and the extracted copy is memory-mapped instead.
+ *
+ * @author Mike
+ */
+public class ZipTileSource implements TileSource {
+
+    /**
+     * @param path the directory holding the ZIP files
+     * @param rawStore store to extract tiles into, or null to decode them in memory
+     */
+    public ZipTileSource(String path, RawTileStore rawStore) {
+        directory = path;
+        store = rawStore;
+    }
+
+    public File zipFile(String name, TileFormat format) {
+        return new File(directory + name + format.extn());
+    }
+
+    @Override
+    public DEMTile getTile(String name, TileFormat format) throws MissingDataFileException {
+        File infile = zipFile(name, format);
+        if (!infile.isFile()) {
+            return null;
+        }
+        try {
+            ZipHandle handle = open(infile, format.zipEntryName(name));
+            try {
+                InputStream in = new BufferedInputStream(handle.zip.getInputStream(handle.entry), BUFFERLENGTH);
+                try {
+                    return decode(name, in, format);
+                } finally {
+                    in.close();
+                }
+            } finally {
+                release(handle);
+            }
+        } catch (IOException e) {
+            throw new MissingDataFileException("Unable to read file - " + e.toString());
+        }
+    }
+
+    /**
+     * Decode a tile's payload: extract and map it if there is a raw tile
+     * store, open it as a TiffTile if it is a TIFF file, and otherwise read it
+     * as raw records
+     */
+    private DEMTile decode(String name, InputStream in, TileFormat format) throws IOException {
+        int recordlength = format.recordlength();
+        if (store != null) {
+            store.extract(name, in);
+            return store.map(name, recordlength, format.littleendian());
+        }
+        PushbackInputStream data = new PushbackInputStream(in, 4);
+        byte[] magic = new byte[4];
+        int count = 0;
+        int res;
+        while (count < magic.length && (res = data.read(magic, count, magic.length - count)) > 0) {
+            count += res;
+        }
+        data.unread(magic, 0, count);
+        if (TiffTile.isTiff(magic, count)) {
+            return TiffTile.read(name, data, recordlength);
+        }
+        short[] heights = new short[recordlength * recordlength];
+        byte[] buffer = new byte[recordlength * 2];
+        int recordno = 0;
+        try {
+            while (recordno < recordlength) {
+                readRecord(data, buffer, heights, recordno * recordlength, format);
+                recordno++;
+            }
+        } catch (EOFException e) {
+            //Short file - rows beyond this point are reported as missing when requested
+        }
+        return new ArrayTile(name, heights, recordlength, recordno);
+    }
+
+    /**
+     * Find a tile's entry through the ZIP file's central directory, re-using
+     * the open file and resolved entry if the tile has been opened recently.
+     * The handle must be given back with release().
+     */
+    private ZipHandle open(File infile, String entryname) throws IOException, MissingDataFileException {
+        String key = infile.getPath();
+        synchronized (handles) {
+            ZipHandle handle = handles.get(key);
+            if (handle != null) {
+                handle.users++;
+                return handle;
+            }
+        }
+        ZipFile zip = new ZipFile(infile);
+        ZipEntry entry = zip.getEntry(entryname);
+        if (entry == null) {
+//Entry names are matched regardless of case, as some archives differ from the documented names
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entry == null && entries.hasMoreElements()) {
+                ZipEntry test = entries.nextElement();
+                if (test.getName().equalsIgnoreCase(entryname)) {
+                    entry = test;
+                }
+            }
+        }
+        if (entry == null) {
+            zip.close();
+            throw new MissingDataFileException(String.format("ZIP file %s does not contain expected entry %s", infile.getPath(), entryname));
+        }
+        synchronized (handles) {
+            ZipHandle handle = handles.get(key);
+            if (handle == null) {
+                handle = new ZipHandle(zip, entry);
+                handles.put(key, handle);
+            } else {
+                zip.close(); //Another thread opened the same file first
+            }
+            handle.users++;
+            return handle;
+        }
+    }
+
+    private void release(ZipHandle handle) {
+        synchronized (handles) {
+            handle.users--;
+            if (handle.evicted && handle.users == 0) {
+                handle.close();
+            }
+        }
+    }
+
+    /**
+     * Read and decode one record (row) of 16-bit heights from a stream
+     *
+     * @param in the stream, positioned at the start of the record
+     * @param buffer work area of at least recordlength() * 2 bytes
+     * @param outbuffer destination for the decoded heights
+     * @param offset position in outbuffer of the first height in the record
+     * @param format the dataset's record length and byte order
+     * @throws EOFException if the stream ends part-way through the record
+     * @throws IOException if the stream cannot be read
+     */
+    public static void readRecord(InputStream in, byte[] buffer, short[] outbuffer, int offset, TileFormat format) throws EOFException, IOException {
+        int recordlength = format.recordlength();
+        boolean littleendian = format.littleendian();
+        int sofar = 0;
+        //Keep reading until we have the whole record
+        while (sofar < recordlength * 2) {
+            int res = in.read(buffer, sofar, recordlength * 2 - sofar);
+            if (res == -1) {
+                throw new EOFException();
+            }
+            sofar += res;
+        }
+        for (int i = 0; i < recordlength; i++) {
+            short temp;
+            if (littleendian) {
+                temp = (short) (buffer[2 * i + 1] << 8 | (0xff & buffer[2 * i]));
+            } else {
+                temp = (short) (buffer[2 * i] << 8 | (0xff & buffer[2 * i + 1]));
+            }
+            outbuffer[offset + i] = temp;
+        }
+    }
+    private static class ZipHandle {
+
+        ZipHandle(ZipFile file, ZipEntry tile) {
+            zip = file;
+            entry = tile;
+        }
+
+        void close() {
+            try {
+                zip.close();
+            } catch (IOException e) {
+                //Nothing more to do with the file
+            }
+        }
+        final ZipFile zip;
+        final ZipEntry entry;
+        int users = 0;
+        boolean evicted = false;
+    }
+    private final String directory;
+    private final RawTileStore store;
+    /*
+     * Recently used ZIP files, kept open so that reloading an evicted tile
+     * does not read the central directory again. A file pushed out of the
+     * list is closed as soon as no thread is reading from it.
+     */
+    private final LinkedHashMap<String, ZipHandle> handles = new LinkedHashMap<String, ZipHandle>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ZipHandle> eldest) {
+            if (size() <= MAXHANDLES) {
+                return false;
+            }
+            ZipHandle handle = eldest.getValue();
+            handle.evicted = true;
+            if (handle.users == 0) {
+                handle.close();
+            }
+            return true;
+        }
+    };
+    private static final int MAXHANDLES = 32;
+    private static final int BUFFERLENGTH = 1 << 16;
+}